@@ -0,0 +1,18 @@
+#!/bin/sh
+# Builds the server and the benchmarks and runs the benchmarks. The results
+# are saved as results/<commit>.json so runs of different commits can be
+# compared. Extra arguments are passed to JMH, e.g. "./run.sh Codec" to run
+# only the codec benchmarks.
+set -e
+cd "$(dirname "$0")"
+
+(cd .. && mvn -q -B install -DskipTests)
+mvn -q -B package
+
+commit=$(git rev-parse --short HEAD)
+if ! git diff --quiet HEAD -- ../src; then
+    commit="$commit-dirty"
+fi
+mkdir -p results
+java -jar target/benchmarks.jar -rf json -rff "results/$commit.json" "$@"
+echo "Results saved to benchmarks/results/$commit.json"
@@ -0,0 +1,71 @@
+package com.alfred.server.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.server.server.Server;
+
+/**
+ * Fan-out of one state update to N clients with Server.sendMessage. The
+ * clients are in-memory connections, so the time is the encode, the change
+ * log and the queueing and writing of the frame per client
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int clients;
+
+    @Param({ "false", "true" })
+    public boolean withImage;
+
+    private final List<InMemoryConnection> connections = new ArrayList<>();
+    private StateDeviceMessage msg;
+
+    @Setup
+    public void setUp() {
+        msg = Messages.doorbell(withImage);
+        for (int i = 0; i < clients; i++) {
+            InMemoryConnection connection = new InMemoryConnection(10000 + i);
+            connections.add(connection);
+            Server.addServerConnection(connection);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (InMemoryConnection connection : connections) {
+            Server.removeServerConnection(connection);
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        Server.sendMessage(msg);
+    }
+}
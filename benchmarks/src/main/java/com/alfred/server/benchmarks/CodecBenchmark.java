@@ -0,0 +1,69 @@
+package com.alfred.server.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.server.server.Frame;
+
+/**
+ * Length delimited encode and decode of a StateDeviceMessage, with and
+ * without image data. "encodeStream" is the writeDelimitedTo the clients
+ * use, "encodeFrame" is the Frame the server broadcasts
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean withImage;
+
+    private StateDeviceMessage msg;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        msg = Messages.doorbell(withImage);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeDelimitedTo(out);
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeDelimitedTo(out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Frame encodeFrame() throws IOException {
+        return Frame.encode(msg);
+    }
+
+    @Benchmark
+    public StateDeviceMessage decode() throws IOException {
+        return StateDeviceMessage.parseDelimitedFrom(new ByteArrayInputStream(encoded));
+    }
+}
@@ -0,0 +1,98 @@
+package com.alfred.server.benchmarks;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.network.NetworkHandler;
+import com.alfred.server.server.Server;
+
+/**
+ * Dispatch of a received message with Server.messageReceived when many
+ * NetworkHandlers are registered, one per device like the device plugins
+ * register them, plus a few that receive every message
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int GLOBAL_HANDLERS = 2;
+
+    @Param({ "10", "100", "1000" })
+    public int devices;
+
+    private final List<NetworkHandler> handlers = new ArrayList<>();
+    private StateDeviceMessage msg;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < devices; i++) {
+            NetworkHandler handler = new CountingHandler("device" + i);
+            handlers.add(handler);
+            Server.addNetworkHandler("device" + i, handler);
+        }
+        for (int i = 0; i < GLOBAL_HANDLERS; i++) {
+            NetworkHandler handler = new CountingHandler(null);
+            handlers.add(handler);
+            Server.addNetworkHandler(handler);
+        }
+        msg = Messages.doorbell(false).toBuilder().setId("device" + (devices / 2)).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (NetworkHandler handler : handlers) {
+            Server.removeNetworkHandler(handler);
+        }
+        handlers.clear();
+    }
+
+    @Benchmark
+    public void messageReceived() {
+        Server.messageReceived(msg);
+    }
+
+    /**
+     * A handler that does what the device plugins do first: check the id
+     */
+    private static class CountingHandler implements NetworkHandler {
+        private final String deviceId;
+        int matched = 0;
+
+        CountingHandler(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public void onConnect(Socket connection) { }
+
+        @Override
+        public void onMessageReceived(StateDeviceMessage msg) {
+            if (deviceId == null || msg.getId().equals(deviceId)) {
+                matched++;
+            }
+        }
+    }
+}
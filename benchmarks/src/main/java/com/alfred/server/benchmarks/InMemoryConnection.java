@@ -0,0 +1,90 @@
+package com.alfred.server.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import com.alfred.server.server.Frame;
+import com.alfred.server.server.ServerConnection;
+
+/**
+ * A server connection without a network. Queued frames are written at once
+ * on the sending thread to an output stream that only counts the bytes, so a
+ * benchmark measures the server's work and not the network
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class InMemoryConnection extends ServerConnection {
+
+    private final CountingOutputStream out = new CountingOutputStream();
+
+    InMemoryConnection(int port) {
+        super(new InMemorySocket(port));
+    }
+
+    @Override
+    protected void onFrameQueued() {
+        Frame frame;
+        try {
+            while ((frame = getOutboundQueue().poll()) != null) {
+                frame.writeTo(out);
+                addBytesSent(frame.size());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        getOutboundQueue().close();
+    }
+
+    /**
+     * @return The number of bytes written to the connection
+     */
+    long getCount() {
+        return out.count;
+    }
+
+    /**
+     * A socket that is never connected to anything but says it is
+     */
+    private static class InMemorySocket extends Socket {
+        private final SocketAddress address;
+
+        InMemorySocket(int port) {
+            this.address = new InetSocketAddress("127.0.0.1", port);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return address;
+        }
+    }
+
+    /**
+     * Output stream that drops the bytes written to it
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
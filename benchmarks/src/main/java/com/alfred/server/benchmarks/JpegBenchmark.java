@@ -0,0 +1,71 @@
+package com.alfred.server.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * JPEG encoding of a webcam frame at the two resolutions the webcam service
+ * supports, the same way the webcam doorbell encodes its pictures. The frame
+ * is a gradient with noise, so it compresses about like a camera picture
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JpegBenchmark {
+
+    @Param({ "640x360", "1280x720" })
+    public String resolution;
+
+    private BufferedImage frame;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        frame = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = frame.createGraphics();
+        for (int x = 0; x < width; x++) {
+            graphics.setColor(new Color(x * 255 / width, 128, 255 - x * 255 / width));
+            graphics.drawLine(x, 0, x, height);
+        }
+        graphics.dispose();
+        Random random = new Random(42);
+        for (int i = 0; i < width * height / 8; i++) {
+            frame.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt());
+        }
+    }
+
+    @Benchmark
+    public ByteString encode() throws IOException {
+        ByteString.Output out = ByteString.newOutput();
+        ImageIO.write(frame, "jpg", out);
+        return out.toByteString();
+    }
+}
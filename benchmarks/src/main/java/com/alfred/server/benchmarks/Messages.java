@@ -0,0 +1,42 @@
+package com.alfred.server.benchmarks;
+
+import java.util.Random;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.google.protobuf.ByteString;
+
+/**
+ * Messages shared by the benchmarks
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+final class Messages {
+
+    // about the size of a 640x360 webcam JPEG
+    static final int IMAGE_SIZE = 48 * 1024;
+
+    private Messages() { }
+
+    /**
+     * Method to create a doorbell update, optionally carrying a picture
+     *
+     * @param withImage True to attach random image data
+     * @return The message
+     */
+    static StateDeviceMessage doorbell(boolean withImage) {
+        StateDeviceMessage.Builder builder = StateDeviceMessage.newBuilder()
+                .setId("doorbell1")
+                .setName("Front Door")
+                .setType(Type.DOORBELL)
+                .setState(State.ACTIVE);
+        if (withImage) {
+            byte[] image = new byte[IMAGE_SIZE];
+            new Random(42).nextBytes(image);
+            builder.setData(ByteString.copyFrom(image));
+        }
+        return builder.build();
+    }
+}
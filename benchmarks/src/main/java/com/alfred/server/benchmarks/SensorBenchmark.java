@@ -0,0 +1,93 @@
+package com.alfred.server.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.server.gpio.Gpio;
+import com.alfred.server.gpio.SimulatedGpio;
+import com.alfred.server.plugins.RPSwitchDevicePlugin;
+import com.alfred.server.server.Server;
+
+/**
+ * The whole path from a sensor edge to the clients: a simulated GPIO edge on
+ * a switch device's sensor, the debouncer, the state device update and the
+ * broadcast to N in-memory connections. The debounce window is zero, so
+ * every edge is a state change
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorBenchmark {
+
+    private static final int SENSOR_PIN = 11;
+    private static final int RELAY_PIN = 15;
+
+    @Param({ "1", "10", "100" })
+    public int clients;
+
+    private final List<InMemoryConnection> connections = new ArrayList<>();
+    private SimulatedGpio gpio;
+    private RPSwitchDevicePlugin plugin;
+    private boolean level = false;
+
+    @Setup
+    public void setUp() {
+        gpio = new SimulatedGpio();
+        Gpio.setBackend(gpio);
+        StateDeviceMessage light = StateDeviceMessage.newBuilder()
+                .setId("light1")
+                .setName("Porch Light")
+                .setType(Type.LIGHT)
+                .setState(StateDeviceMessage.State.OFF)
+                .build();
+        StateDeviceManager.addStateDevice(new StateDevice(light));
+        plugin = new RPSwitchDevicePlugin(SENSOR_PIN, RELAY_PIN, "light1", 0);
+        plugin.activate();
+        for (int i = 0; i < clients; i++) {
+            InMemoryConnection connection = new InMemoryConnection(10000 + i);
+            connections.add(connection);
+            Server.addServerConnection(connection);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.deactivate();
+        Gpio.shutdown();
+        for (InMemoryConnection connection : connections) {
+            Server.removeServerConnection(connection);
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    @Benchmark
+    public void edge() {
+        level = !level;
+        gpio.inject(SENSOR_PIN, level);
+    }
+}
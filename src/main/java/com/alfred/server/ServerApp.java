@@ -1,8 +1,18 @@
 package com.alfred.server;
 
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.metrics.MetricsEndpoint;
+import com.alfred.server.server.ConnectionEngine;
 import com.alfred.server.server.NewConnectionThread;
+import com.alfred.server.server.NioConnectionEngine;
 import com.alfred.server.server.Server;
+import com.alfred.server.server.ServerLifecycle;
 import com.alfred.server.utils.Config;
+import com.alfred.server.utils.StartupTimer;
 
 /**
  * Server Application main class. This class will start the Alfred Server application
@@ -12,6 +22,8 @@ import com.alfred.server.utils.Config;
  */
 public class ServerApp {
 
+    private static final Logger log = LoggerFactory.getLogger(ServerApp.class);
+
     /**
      * Main method that loads the configuration files and starts the main server thread
      * 
@@ -28,19 +40,46 @@ public class ServerApp {
          *  LOAD CONFIGURATIONS
          * -------------------------------------------------------------------*/
         Config.loadProperties("cfg/config.properties");
+        StartupTimer.phaseDone("loading the properties");
         Config.initialize("cfg/devices.json");
+        Config.watchDevices("cfg/devices.json");
 
         /* -------------------------------------------------------------------
-         *  START SERVER
+         *  START METRICS ENDPOINT
          * -------------------------------------------------------------------*/
-        Thread server = 
-                new Thread(new NewConnectionThread(Server.getProperty(Config.HOST_ADDRESS),
-                                                   Server.getProperty(Config.HOST_PORT)));
-        server.start();
+        int metricsPort = (int) Server.getLongProperty(Config.METRICS_PORT, 0);
+        if (metricsPort > 0) {
+            String metricsAddress = Server.getProperty(Config.METRICS_ADDRESS);
+            try {
+                MetricsEndpoint.start(metricsAddress != null ? metricsAddress.trim() : MetricsEndpoint.DEFAULT_ADDRESS,
+                        metricsPort);
+            } catch (IOException e) {
+                log.error("Unable to start metrics endpoint", e);
+            }
+            StartupTimer.phaseDone("starting the metrics endpoint");
+        }
 
-        // keep alive
-        while (true) {
+        /* -------------------------------------------------------------------
+         *  START SERVER
+         * -------------------------------------------------------------------*/
+        String hostAddress = Server.getProperty(Config.HOST_ADDRESS);
+        String hostPort = Server.getProperty(Config.HOST_PORT);
+        ConnectionEngine engine;
+        if ("nio".equalsIgnoreCase(Server.getProperty(Config.NETWORK_ENGINE))) {
+            int ioThreads = (int) Server.getLongProperty(Config.IO_THREADS, 1);
+            engine = new NioConnectionEngine(hostAddress, hostPort, ioThreads);
+        } else {
+            engine = new NewConnectionThread(hostAddress, hostPort);
+        }
+        ServerLifecycle lifecycle = new ServerLifecycle(engine,
+                Server.getLongProperty(Config.SHUTDOWN_TIMEOUT, ServerLifecycle.DEFAULT_TIMEOUT));
+        lifecycle.start();
 
+        // park the main thread until the server is stopped
+        try {
+            lifecycle.awaitShutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -5,6 +5,8 @@ import java.util.Calendar;
 
 import javax.mail.internet.MimeMultipart;
 
+import com.google.protobuf.ByteString;
+
 /**
  * Email parent class. This parent class contains the common email properties
  * and methods. Subclasses only need to define the getContent method.
@@ -17,6 +19,7 @@ public abstract class Email {
     private String subject;
     private String date;
     private String imagePath;    
+    private ByteString image;
     
     public String getSubject() {
         return subject;
@@ -50,6 +53,20 @@ public abstract class Email {
         this.imagePath = imagePath;
     }
     
+    public ByteString getImage() {
+        return image;
+    }
+    
+    /**
+     * Method to set an encoded JPEG image. When an image is set it is
+     * attached from memory instead of being read from the image path
+     * 
+     * @param image The encoded JPEG image
+     */
+    public void setImage(ByteString image) {
+        this.image = image;
+    }
+    
     /**
      * This method should be used by child classes to create the email message
      * content
@@ -0,0 +1,285 @@
+package com.alfred.server.email;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.metrics.Counter;
+import com.alfred.server.metrics.Gauge;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
+
+/**
+ * Sends emails in the background. Callers only add an email to a bounded
+ * queue, and a single worker thread delivers the queued emails over one SMTP
+ * connection. The connection is opened and authenticated on the first email
+ * and reused for the following ones, so a burst of visitors does not pay for
+ * a new TLS handshake per email. The connection is closed after a minute
+ * without emails.
+ *
+ * If delivery fails the connection is reopened and the email is retried,
+ * waiting twice as long before each new attempt. The time each email spent
+ * in the queue and in delivery is logged.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class EmailDispatcher implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final int DEFAULT_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_DELAY = 2000;
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private final Properties properties;
+    private final String username;
+    private final String password;
+    private final List<String> recipients;
+    private final BlockingQueue<QueuedEmail> queue;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private Session session = null;
+    private Transport transport = null;
+    private volatile boolean running = false;
+    private Thread worker = null;
+    private static final Histogram sendTime = Metrics.histogram("alfred_email_send_seconds",
+            "Time to send an email to the mail server");
+    private static final Histogram deliveryTime = Metrics.histogram("alfred_email_delivery_seconds",
+            "Time from queueing an email to sending it, including retries");
+    private static final Counter failures = Metrics.counter("alfred_email_failures_total",
+            "Emails dropped because the queue was full or every attempt failed");
+    private static final Logger log = LoggerFactory.getLogger(EmailDispatcher.class);
+
+    /**
+     * Constructor order is mail properties, username, password, recipients,
+     * queue capacity, delivery attempts, retry delay
+     *
+     * @param properties
+     *            The JavaMail properties (host, port, TLS, auth, etc)
+     * @param username
+     *            The account used to send emails
+     * @param password
+     *            The password or app token of the account
+     * @param recipients
+     *            The list of recipient addresses. The list is read when each
+     *            email is sent, so later changes are picked up
+     * @param capacity
+     *            The maximum number of emails waiting to be sent
+     * @param maxAttempts
+     *            The number of delivery attempts per email
+     * @param retryDelay
+     *            The delay before the first retry in milliseconds
+     */
+    public EmailDispatcher(Properties properties, String username, String password, List<String> recipients,
+            int capacity, int maxAttempts, long retryDelay) {
+        this.properties = properties;
+        this.username = username;
+        this.password = password;
+        this.recipients = recipients;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Method to start the worker thread
+     */
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            worker = new Thread(this, "alfred-email");
+            worker.setDaemon(true);
+            worker.start();
+            Metrics.gauge("alfred_email_queued", "Emails waiting to be sent", new Gauge() {
+                @Override
+                public long getValue() {
+                    return queue.size();
+                }
+            });
+        }
+    }
+
+    /**
+     * Method to stop the worker thread. Emails still in the queue are not sent
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /**
+     * Method to queue an email for delivery
+     *
+     * @param email A reference to a valid email object
+     * @return True if the email was queued, false if the queue is full
+     */
+    public boolean submit(Email email) {
+        if (!queue.offer(new QueuedEmail(email))) {
+            log.error("Email queue full, dropping email \"" + email.getSubject() + "\"");
+            failures.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of emails waiting to be sent
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                QueuedEmail queued = queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (queued == null) {
+                    // nothing to send for a while, don't keep the server waiting
+                    closeTransport();
+                    continue;
+                }
+                try {
+                    deliver(queued);
+                } catch (RuntimeException e) {
+                    // a broken email must not stop the worker, the rest of the queue still goes out
+                    log.error("Sending email \"" + queued.email.getSubject() + "\" failed", e);
+                    failures.increment();
+                    closeTransport();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        closeTransport();
+    }
+
+    /**
+     * Helper method to send one email, retrying with backoff
+     */
+    private void deliver(QueuedEmail queued) throws InterruptedException {
+        if (recipients.isEmpty()) {
+            return;
+        }
+        String clients = String.join(",", recipients);
+        long delay = retryDelay;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            try {
+                Message message = createMessage(queued.email, clients);
+                ensureConnected();
+                transport.sendMessage(message, message.getAllRecipients());
+                long end = System.currentTimeMillis();
+                sendTime.recordSince(startNanos);
+                deliveryTime.record(TimeUnit.MILLISECONDS.toNanos(end - queued.queuedAt));
+                log.info("Email sent to " + clients + " in " + (end - start) + " ms (queued "
+                        + (start - queued.queuedAt) + " ms, attempt " + attempt + ")");
+                return;
+            } catch (MessagingException e) {
+                log.error("Email attempt " + attempt + " of " + maxAttempts + " failed", e);
+                closeTransport();
+                if (attempt < maxAttempts) {
+                    // the first retry is immediate, the connection may just have gone stale
+                    if (attempt > 1) {
+                        Thread.sleep(delay);
+                        delay *= 2;
+                    }
+                }
+            }
+        }
+        log.error("Giving up on email \"" + queued.email.getSubject() + "\"");
+        failures.increment();
+    }
+
+    /**
+     * Helper method to build the MIME message for an email
+     */
+    private Message createMessage(Email email, String clients) throws MessagingException {
+        Message message = new MimeMessage(getSession());
+        if (username != null && !username.isEmpty()) {
+            message.setFrom(new InternetAddress(username));
+        }
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(clients));
+        message.setSubject(email.getSubject());
+        message.setSentDate(new Date());
+
+        // add email content to message
+        message.setContent(email.getContent());
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * Helper method to open and authenticate the SMTP connection if it is not
+     * already open
+     */
+    private void ensureConnected() throws MessagingException {
+        if (transport == null || !transport.isConnected()) {
+            closeTransport();
+            long start = System.currentTimeMillis();
+            transport = getSession().getTransport("smtp");
+            transport.connect();
+            log.info("Connected to mail server in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Helper method to close the SMTP connection, ignoring errors
+     */
+    private void closeTransport() {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                log.debug("Closing mail connection failed", e);
+            }
+            transport = null;
+        }
+    }
+
+    /**
+     * Helper method to create the mail session on first use
+     */
+    private Session getSession() {
+        if (session == null) {
+            session = Session.getInstance(properties, new javax.mail.Authenticator() {
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return new PasswordAuthentication(username, password);
+                }
+            });
+        }
+        return session;
+    }
+
+    /**
+     * An email and the time it was queued
+     */
+    private static class QueuedEmail {
+        final Email email;
+        final long queuedAt;
+
+        QueuedEmail(Email email) {
+            this.email = email;
+            this.queuedAt = System.currentTimeMillis();
+        }
+    }
+}
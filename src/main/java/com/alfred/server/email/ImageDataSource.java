@@ -0,0 +1,52 @@
+package com.alfred.server.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Read only DataSource for an image that is already in memory. Attaching the
+ * encoded image directly avoids reading the saved copy back from the SD card
+ * when an email is sent.
+ * 
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class ImageDataSource implements DataSource {
+
+    private final ByteString bytes;
+    private final String name;
+
+    /**
+     * @param bytes The encoded JPEG image
+     * @param name The file name shown for the attachment
+     */
+    public ImageDataSource(ByteString bytes, String name) {
+        this.bytes = bytes;
+        this.name = name;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return bytes.newInput();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Image data source is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return "image/jpeg";
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
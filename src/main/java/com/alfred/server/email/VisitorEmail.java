@@ -32,7 +32,12 @@ public class VisitorEmail extends Email {
 
             // second part (the image)
             messageBodyPart = new MimeBodyPart();
-            DataSource fds = new FileDataSource(getImagePath());
+            DataSource fds;
+            if (getImage() != null) {
+                fds = new ImageDataSource(getImage(), "visitor.jpg");
+            } else {
+                fds = new FileDataSource(getImagePath());
+            }
 
             messageBodyPart.setDataHandler(new DataHandler(fds));
             messageBodyPart.setHeader("Content-ID", "<image>");
@@ -0,0 +1,62 @@
+package com.alfred.server.gpio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.server.Server;
+import com.alfred.server.utils.Config;
+
+/**
+ * Holder of the GPIO backend the plugins provision their pins from. The
+ * backend is chosen by "alfred.gpio.backend": "pi4j" (default) for the pins
+ * of the Raspberry Pi, "simulated" for in memory pins
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class Gpio {
+
+    public static final String PI4J = "pi4j";
+    public static final String SIMULATED = "simulated";
+
+    private static GpioBackend backend = null;
+    private static final Logger log = LoggerFactory.getLogger(Gpio.class);
+
+    private Gpio() { }
+
+    /**
+     * @return The configured backend, created on first use
+     */
+    public static synchronized GpioBackend getBackend() {
+        if (backend == null) {
+            String name = Server.getProperty(Config.GPIO_BACKEND);
+            if (name != null && SIMULATED.equalsIgnoreCase(name.trim())) {
+                log.info("Using simulated GPIO pins");
+                backend = new SimulatedGpio();
+            } else {
+                backend = new Pi4jGpio();
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Method to replace the backend, e.g. with a SimulatedGpio in tests and
+     * benchmarks. Must be called before the plugins are activated
+     *
+     * @param gpio The backend to use
+     */
+    public static synchronized void setBackend(GpioBackend gpio) {
+        backend = gpio;
+    }
+
+    /**
+     * Method to release every pin of the backend, if one was created
+     */
+    public static synchronized void shutdown() {
+        if (backend != null) {
+            backend.shutdown();
+            backend = null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.alfred.server.gpio;
+
+/**
+ * The GPIO pins the plugins use. Pins are identified by their physical
+ * header number, the number the device configuration uses.
+ * <ul>
+ * <li><b>Pi4jGpio:</b> the pins of the Raspberry Pi, through the Pi4J
+ * library</li>
+ * <li><b>SimulatedGpio:</b> in memory pins, so the plugins can run and be
+ * load tested on any machine</li>
+ * </ul>
+ * Get the configured backend with Gpio.getBackend
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface GpioBackend {
+
+    /**
+     * Method to provision an input pin with its pull down resistor enabled
+     *
+     * @param pin The physical pin number
+     * @param name A name for the pin, used in log messages
+     * @return The input pin
+     * @throws IllegalArgumentException if the pin is not a GPIO pin
+     */
+    InputPin provisionInput(int pin, String name);
+
+    /**
+     * Method to provision an output pin, driven low
+     *
+     * @param pin The physical pin number
+     * @param name A name for the pin, used in log messages
+     * @return The output pin
+     * @throws IllegalArgumentException if the pin is not a GPIO pin
+     */
+    OutputPin provisionOutput(int pin, String name);
+
+    /**
+     * Method to release a provisioned pin, removing its listeners, so it can
+     * be provisioned again. Releasing a pin that is not provisioned has no
+     * effect
+     *
+     * @param pin The physical pin number
+     */
+    void release(int pin);
+
+    /**
+     * Method to release every pin. Called when the server is shutting down
+     */
+    void shutdown();
+}
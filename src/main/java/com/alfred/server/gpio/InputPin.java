@@ -0,0 +1,24 @@
+package com.alfred.server.gpio;
+
+/**
+ * A provisioned GPIO input pin
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface InputPin {
+
+    /**
+     * @return The physical pin number
+     */
+    int getPin();
+
+    /**
+     * @return True if the pin is high
+     */
+    boolean isHigh();
+
+    void addListener(PinListener listener);
+
+    void removeListener(PinListener listener);
+}
@@ -0,0 +1,36 @@
+package com.alfred.server.gpio;
+
+/**
+ * A provisioned GPIO output pin
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface OutputPin {
+
+    /**
+     * @return The physical pin number
+     */
+    int getPin();
+
+    /**
+     * @return True if the pin is high
+     */
+    boolean isHigh();
+
+    /**
+     * Method to set the level of the pin
+     *
+     * @param high True to drive the pin high, false to drive it low
+     */
+    void setHigh(boolean high);
+
+    /**
+     * Method to drive the pin high for a while and then low again, e.g. to
+     * press a button through a relay. Returns without waiting for the pulse
+     * to end
+     *
+     * @param millis The length of the pulse in milliseconds
+     */
+    void pulse(long millis);
+}
@@ -0,0 +1,155 @@
+package com.alfred.server.gpio;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.alfred.server.utils.PinConverter;
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinPullResistance;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+/**
+ * GPIO backend for the pins of the Raspberry Pi, through the Pi4J library.
+ * Physical pin numbers are converted with PinConverter.ModelB, and edges are
+ * delivered on Pi4J's event thread. Pins are provisioned one at a time, since
+ * the plugins are activated in parallel
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class Pi4jGpio implements GpioBackend {
+
+    private final GpioController gpio;
+    private final Map<Integer, GpioPin> pins = new ConcurrentHashMap<>();
+
+    public Pi4jGpio() {
+        this.gpio = GpioFactory.getInstance();
+    }
+
+    @Override
+    public synchronized InputPin provisionInput(int pin, String name) {
+        GpioPinDigitalInput input = gpio.provisionDigitalInputPin(convert(pin), name, PinPullResistance.PULL_DOWN);
+        pins.put(pin, input);
+        return new Pi4jInput(pin, input);
+    }
+
+    @Override
+    public synchronized OutputPin provisionOutput(int pin, String name) {
+        GpioPinDigitalOutput output = gpio.provisionDigitalOutputPin(convert(pin), name, PinState.LOW);
+        pins.put(pin, output);
+        return new Pi4jOutput(pin, output);
+    }
+
+    @Override
+    public synchronized void release(int pin) {
+        GpioPin provisioned = pins.remove(pin);
+        if (provisioned != null) {
+            provisioned.removeAllListeners();
+            gpio.unprovisionPin(provisioned);
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        for (Integer pin : pins.keySet()) {
+            release(pin);
+        }
+        gpio.shutdown();
+    }
+
+    /**
+     * Helper method to convert a physical pin to its Pi4J pin
+     */
+    private static Pin convert(int pin) {
+        Pin converted = PinConverter.ModelB.fromInt(pin);
+        if (converted == null) {
+            throw new IllegalArgumentException("Pin " + pin + " is not a GPIO pin");
+        }
+        return converted;
+    }
+
+    /**
+     * Input pin that adapts Pi4J's listeners
+     */
+    private static class Pi4jInput implements InputPin {
+        private final int pin;
+        private final GpioPinDigitalInput input;
+        private final Map<PinListener, GpioPinListenerDigital> listeners = new ConcurrentHashMap<>();
+
+        Pi4jInput(int pin, GpioPinDigitalInput input) {
+            this.pin = pin;
+            this.input = input;
+        }
+
+        @Override
+        public int getPin() {
+            return pin;
+        }
+
+        @Override
+        public boolean isHigh() {
+            return input.isHigh();
+        }
+
+        @Override
+        public void addListener(final PinListener listener) {
+            GpioPinListenerDigital adapter = new GpioPinListenerDigital() {
+                @Override
+                public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
+                    listener.onEdge(pin, event.getState() == PinState.HIGH);
+                }
+            };
+            if (listeners.putIfAbsent(listener, adapter) == null) {
+                input.addListener(adapter);
+            }
+        }
+
+        @Override
+        public void removeListener(PinListener listener) {
+            GpioPinListenerDigital adapter = listeners.remove(listener);
+            if (adapter != null) {
+                input.removeListener(adapter);
+            }
+        }
+    }
+
+    /**
+     * Output pin backed by a Pi4J output
+     */
+    private static class Pi4jOutput implements OutputPin {
+        private final int pin;
+        private final GpioPinDigitalOutput output;
+
+        Pi4jOutput(int pin, GpioPinDigitalOutput output) {
+            this.pin = pin;
+            this.output = output;
+        }
+
+        @Override
+        public int getPin() {
+            return pin;
+        }
+
+        @Override
+        public boolean isHigh() {
+            return output.isHigh();
+        }
+
+        @Override
+        public void setHigh(boolean high) {
+            output.setState(high ? PinState.HIGH : PinState.LOW);
+        }
+
+        @Override
+        public void pulse(long millis) {
+            output.pulse(millis);
+        }
+    }
+}
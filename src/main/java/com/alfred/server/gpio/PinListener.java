@@ -0,0 +1,19 @@
+package com.alfred.server.gpio;
+
+/**
+ * Listener for the edges of a GPIO input pin
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface PinListener {
+
+    /**
+     * Called when an input pin changes level. Listeners are called on the
+     * backend's event thread, so they should hand off anything slow
+     *
+     * @param pin The physical pin number
+     * @param high True if the pin went high, false if it went low
+     */
+    void onEdge(int pin, boolean high);
+}
@@ -0,0 +1,286 @@
+package com.alfred.server.gpio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.alfred.server.utils.PinConverter;
+
+/**
+ * In memory GPIO backend, so the plugins can run without a Raspberry Pi.
+ * Tests and load generators drive the inputs with inject or play, and read
+ * back what the plugins did to the outputs with getPulses and isHigh.
+ *
+ * Injected edges are delivered to the listeners on the injecting thread
+ * before inject returns, so a script can push edges through the whole
+ * sensor to broadcast path as fast as one thread can call it. Like the real
+ * pins, setting an input to the level it already has is not an edge.
+ *
+ * Output pulses are recorded rather than timed, the pin stays at its level.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class SimulatedGpio implements GpioBackend {
+
+    private final Map<Integer, SimulatedPin> pins = new ConcurrentHashMap<>();
+
+    @Override
+    public InputPin provisionInput(int pin, String name) {
+        SimulatedInput input = new SimulatedInput(pin);
+        provision(input);
+        return input;
+    }
+
+    @Override
+    public OutputPin provisionOutput(int pin, String name) {
+        SimulatedOutput output = new SimulatedOutput(pin);
+        provision(output);
+        return output;
+    }
+
+    @Override
+    public void release(int pin) {
+        SimulatedPin released = pins.remove(pin);
+        if (released instanceof SimulatedInput) {
+            ((SimulatedInput) released).listeners.clear();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (Integer pin : pins.keySet()) {
+            release(pin);
+        }
+    }
+
+    /**
+     * Method to set the level of an input pin, notifying its listeners if the
+     * level changed
+     *
+     * @param pin The physical pin number
+     * @param high The new level
+     * @return True if this was an edge
+     * @throws IllegalArgumentException if the pin is not a provisioned input
+     */
+    public boolean inject(int pin, boolean high) {
+        return getInput(pin).set(high);
+    }
+
+    /**
+     * Method to play a script of edges on an input pin. The pin is toggled
+     * once per interval, each interval measured from the previous edge, so
+     * contact bounce can be scripted as a few short intervals followed by a
+     * long one. Blocks until the script is played
+     *
+     * @param pin The physical pin number
+     * @param intervalsNanos The time before each edge in nanoseconds
+     * @return The number of edges played
+     */
+    public int play(int pin, long... intervalsNanos) {
+        SimulatedInput input = getInput(pin);
+        long next = System.nanoTime();
+        int edges = 0;
+        for (long interval : intervalsNanos) {
+            next += interval;
+            waitUntil(next);
+            if (input.set(!input.isHigh())) {
+                edges++;
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Method to toggle an input pin at a fixed rate. Blocks until every edge
+     * is played
+     *
+     * @param pin The physical pin number
+     * @param edges The number of edges
+     * @param intervalNanos The time between edges in nanoseconds, 0 to play
+     *            them as fast as possible
+     * @return The number of edges played
+     */
+    public int play(int pin, int edges, long intervalNanos) {
+        long[] intervals = new long[edges];
+        Arrays.fill(intervals, intervalNanos);
+        return play(pin, intervals);
+    }
+
+    /**
+     * @param pin The physical pin number
+     * @return The number of edges delivered on an input pin since it was
+     *         provisioned
+     */
+    public long getEdgeCount(int pin) {
+        return getInput(pin).edges.get();
+    }
+
+    /**
+     * @param pin The physical pin number
+     * @return The level of a provisioned pin
+     */
+    public boolean isHigh(int pin) {
+        SimulatedPin provisioned = pins.get(pin);
+        if (provisioned == null) {
+            throw new IllegalArgumentException("Pin " + pin + " is not provisioned");
+        }
+        return provisioned.isHigh();
+    }
+
+    /**
+     * @param pin The physical pin number
+     * @return The pulses on an output pin since it was provisioned, oldest
+     *         first
+     */
+    public List<Pulse> getPulses(int pin) {
+        SimulatedPin provisioned = pins.get(pin);
+        if (!(provisioned instanceof SimulatedOutput)) {
+            throw new IllegalArgumentException("Pin " + pin + " is not a provisioned output");
+        }
+        List<Pulse> pulses = ((SimulatedOutput) provisioned).pulses;
+        synchronized (pulses) {
+            return new ArrayList<>(pulses);
+        }
+    }
+
+    /**
+     * Helper method to register a new pin
+     */
+    private void provision(SimulatedPin pin) {
+        if (PinConverter.ModelB.toWiringPi(pin.getPin()) < 0) {
+            throw new IllegalArgumentException("Pin " + pin.getPin() + " is not a GPIO pin");
+        }
+        if (pins.putIfAbsent(pin.getPin(), pin) != null) {
+            throw new IllegalStateException("Pin " + pin.getPin() + " is already provisioned");
+        }
+    }
+
+    /**
+     * Helper method to find a provisioned input
+     */
+    private SimulatedInput getInput(int pin) {
+        SimulatedPin provisioned = pins.get(pin);
+        if (!(provisioned instanceof SimulatedInput)) {
+            throw new IllegalArgumentException("Pin " + pin + " is not a provisioned input");
+        }
+        return (SimulatedInput) provisioned;
+    }
+
+    /**
+     * Helper method to wait for a deadline. Parks for long waits and spins
+     * for the last stretch, since parking is not precise enough for edges a
+     * few microseconds apart
+     */
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 100000) {
+                LockSupport.parkNanos(remaining - 50000);
+            }
+        }
+    }
+
+    /**
+     * An output pulse
+     */
+    public static final class Pulse {
+        private final long startNanos;
+        private final long millis;
+
+        Pulse(long startNanos, long millis) {
+            this.startNanos = startNanos;
+            this.millis = millis;
+        }
+
+        /**
+         * @return The System.nanoTime at which the pulse started
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * @return The length of the pulse in milliseconds
+         */
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    /**
+     * Base of the simulated pins
+     */
+    private abstract static class SimulatedPin {
+        private final int pin;
+        protected volatile boolean high = false;
+
+        SimulatedPin(int pin) {
+            this.pin = pin;
+        }
+
+        public int getPin() {
+            return pin;
+        }
+
+        public boolean isHigh() {
+            return high;
+        }
+    }
+
+    private static class SimulatedInput extends SimulatedPin implements InputPin {
+        final List<PinListener> listeners = new CopyOnWriteArrayList<>();
+        final AtomicLong edges = new AtomicLong();
+
+        SimulatedInput(int pin) {
+            super(pin);
+        }
+
+        @Override
+        public void addListener(PinListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(PinListener listener) {
+            listeners.remove(listener);
+        }
+
+        synchronized boolean set(boolean level) {
+            if (high == level) {
+                return false;
+            }
+            high = level;
+            edges.incrementAndGet();
+            for (PinListener listener : listeners) {
+                listener.onEdge(getPin(), level);
+            }
+            return true;
+        }
+    }
+
+    private static class SimulatedOutput extends SimulatedPin implements OutputPin {
+        final List<Pulse> pulses = new ArrayList<>();
+
+        SimulatedOutput(int pin) {
+            super(pin);
+        }
+
+        @Override
+        public void setHigh(boolean level) {
+            high = level;
+        }
+
+        @Override
+        public void pulse(long millis) {
+            synchronized (pulses) {
+                pulses.add(new Pulse(System.nanoTime(), millis));
+            }
+        }
+    }
+}
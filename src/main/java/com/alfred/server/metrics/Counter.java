@@ -0,0 +1,52 @@
+package com.alfred.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, like the number of frames dropped. Create
+ * counters with Metrics.counter
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class Counter extends Metric {
+
+    private final AtomicLong value = new AtomicLong();
+
+    Counter(String name, String help) {
+        super(name, help);
+    }
+
+    /**
+     * Method to add one to the count
+     */
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    /**
+     * Method to add to the count
+     *
+     * @param amount The amount to add, must not be negative
+     */
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+
+    /**
+     * @return The current count
+     */
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        out.append(getName()).append(' ').append(value.get()).append('\n');
+    }
+}
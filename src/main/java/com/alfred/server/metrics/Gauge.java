@@ -0,0 +1,18 @@
+package com.alfred.server.metrics;
+
+/**
+ * A value that can go up and down, like the number of connections. The value
+ * is read when the metrics are scraped, so the code being measured does no
+ * work to keep it up to date. Register gauges with Metrics.gauge
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface Gauge {
+
+    /**
+     * @return The current value. Called on the scrape thread, must be cheap
+     *         and thread safe
+     */
+    public long getValue();
+}
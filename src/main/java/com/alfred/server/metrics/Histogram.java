@@ -0,0 +1,103 @@
+package com.alfred.server.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with fixed buckets from half a millisecond to ten
+ * seconds. Recording a duration is a scan of a few bucket bounds and two
+ * atomic increments, no locks and no allocation, so it is cheap enough for
+ * the paths between a doorbell press and the message to the phone.
+ *
+ * Durations are recorded in nanoseconds and reported in seconds. Create
+ * histograms with Metrics.histogram
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class Histogram extends Metric {
+
+    // upper bounds of the buckets in seconds, the last bucket is +Inf
+    private static final double[] BOUNDS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+    private static final String[] LABELS = new String[BOUNDS.length];
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1000000000L);
+            LABELS[i] = BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sum = new AtomicLong();
+
+    Histogram(String name, String help) {
+        super(name, help);
+    }
+
+    /**
+     * Method to record a duration
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        sum.addAndGet(nanos);
+    }
+
+    /**
+     * Method to record the time since a start time
+     *
+     * @param startNanos The start time from System.nanoTime
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The number of durations recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The sum of the durations recorded, in nanoseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            cumulative += buckets.get(i);
+            out.append(getName()).append("_bucket{le=\"").append(LABELS[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += buckets.get(BOUNDS.length);
+        out.append(getName()).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(getName()).append("_sum ").append(sum.get() / 1e9).append('\n');
+        out.append(getName()).append("_count ").append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,46 @@
+package com.alfred.server.metrics;
+
+/**
+ * Base class of the metrics kept in the Metrics registry. A metric has a
+ * name and help text, and knows how to write its samples in the Prometheus
+ * text format
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+abstract class Metric {
+
+    private final String name;
+    private final String help;
+
+    Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    /**
+     * @return The name of the metric, e.g. "alfred_connections"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The description of the metric
+     */
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * @return The Prometheus type of the metric: counter, gauge or histogram
+     */
+    abstract String getType();
+
+    /**
+     * Method to append the samples of the metric, one per line
+     *
+     * @param out The text being built
+     */
+    abstract void writeSamples(StringBuilder out);
+}
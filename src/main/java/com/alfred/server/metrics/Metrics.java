@@ -0,0 +1,123 @@
+package com.alfred.server.metrics;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the server's metrics. Code that wants to be measured gets its
+ * counters and histograms from here, usually once into a static field, and
+ * registers gauges for values it already keeps (connection count, queue
+ * sizes, etc). The MetricsEndpoint serves every registered metric in the
+ * Prometheus text format.
+ *
+ * Asking for a counter or histogram that is already registered returns the
+ * existing one, so every instance of a plugin shares its metrics.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class Metrics {
+
+    private static final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics() { }
+
+    /**
+     * Method to get a counter, registering it on first use
+     *
+     * @param name The metric name, ending in "_total" by convention
+     * @param help The description of the metric
+     * @return The counter registered under the name
+     */
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help), Counter.class);
+    }
+
+    /**
+     * Method to get a latency histogram, registering it on first use
+     *
+     * @param name The metric name, ending in "_seconds" by convention
+     * @param help The description of the metric
+     * @return The histogram registered under the name
+     */
+    public static Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help), Histogram.class);
+    }
+
+    /**
+     * Method to register a gauge. A gauge registered under the same name
+     * before is replaced, so a plugin that is activated again can register
+     * its gauge again
+     *
+     * @param name The metric name
+     * @param help The description of the metric
+     * @param gauge The source of the value
+     */
+    public static void gauge(String name, String help, Gauge gauge) {
+        metrics.put(name, new GaugeMetric(name, help, gauge));
+    }
+
+    /**
+     * Method to remove a metric from the registry
+     *
+     * @param name The metric name
+     */
+    public static void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * Method to write every registered metric in the Prometheus text format,
+     * sorted by name
+     *
+     * @return The metrics text
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics.values()) {
+            out.append("# HELP ").append(metric.getName()).append(' ')
+                    .append(metric.getHelp().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+            metric.writeSamples(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Helper method to register a metric unless one is registered under its
+     * name already
+     */
+    private static <T extends Metric> T register(T metric, Class<T> type) {
+        Metric existing = metrics.putIfAbsent(metric.getName(), metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException("Metric " + metric.getName() + " is already registered as a "
+                    + existing.getType());
+        }
+        return type.cast(existing);
+    }
+
+    /**
+     * A registered gauge
+     */
+    private static class GaugeMetric extends Metric {
+        private final Gauge gauge;
+
+        GaugeMetric(String name, String help, Gauge gauge) {
+            super(name, help);
+            this.gauge = gauge;
+        }
+
+        @Override
+        String getType() {
+            return "gauge";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(getName()).append(' ').append(gauge.getValue()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.alfred.server.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP endpoint that serves the registered metrics at "/metrics" in
+ * the Prometheus text format. It uses the HTTP server built into the JDK on a
+ * single thread, so it costs nothing between scrapes.
+ *
+ * The endpoint is only started if "alfred.metrics.port" is set, and listens
+ * on the loopback address unless "alfred.metrics.address" says otherwise.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class MetricsEndpoint {
+
+    public static final String DEFAULT_ADDRESS = "127.0.0.1";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static HttpServer server = null;
+    private static final Logger log = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    private MetricsEndpoint() { }
+
+    /**
+     * Method to start the endpoint. Starting a started endpoint has no
+     * effect
+     *
+     * @param address The address to listen on
+     * @param port The port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public static synchronized void start(String address, int port) throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", new ScrapeHandler());
+        server.start();
+        log.info("Serving metrics on http://" + address + ":" + server.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * @return The port the endpoint listens on, or -1 if it is not started
+     */
+    public static synchronized int getPort() {
+        return server != null ? server.getAddress().getPort() : -1;
+    }
+
+    /**
+     * Method to stop the endpoint, if it was started. Called when the server
+     * is shutting down
+     */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Handler that answers a scrape with every registered metric
+     */
+    private static class ScrapeHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
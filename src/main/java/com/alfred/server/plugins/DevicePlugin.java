@@ -9,7 +9,10 @@ public interface DevicePlugin {
     public void activate();
     
     /**
-     * Deactivate should handle resetting the plugin properties
+     * Deactivate should handle resetting the plugin properties. It must
+     * release the plugin's pins and unregister its handlers, since a device
+     * that changes in devices.json while the server runs is deactivated and
+     * then activated again with a new plugin
      */
     public void deactivate();
 
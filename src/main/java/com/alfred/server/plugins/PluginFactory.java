@@ -3,6 +3,7 @@ package com.alfred.server.plugins;
 import org.json.JSONObject;
 
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.server.utils.Debouncer;
 
 /**
  * A simple factory class with a method to find a plugin
@@ -29,20 +30,24 @@ public class PluginFactory {
         String typeString = obj.getString("type").toUpperCase();
         Type type = Type.valueOf(typeString);
         
+        // sensor debounce window in milliseconds, see Debouncer
+        long defaultDebounce = type == Type.DOORBELL ? Debouncer.DEFAULT_BUTTON_WINDOW : Debouncer.DEFAULT_WINDOW;
+        long debounce = obj.has("debounce") ? obj.getLong("debounce") : defaultDebounce;
+        
         // determine the appropriate plugin for the device
         switch(type) {
             case DOORBELL : 
                 if(obj.has("hasWebcam") && obj.getBoolean("hasWebcam")) {
-                    plugin = new RPDoorbellPluginWebcam(sensorPin, deviceId);
+                    plugin = new RPDoorbellPluginWebcam(sensorPin, deviceId, debounce);
                 } else {
-                    plugin = new RPDoorbellPlugin(sensorPin, deviceId);
+                    plugin = new RPDoorbellPlugin(sensorPin, deviceId, debounce);
                 }
                 break;
             case GARAGEDOOR :
-                plugin = new RPGarageDoorPlugin(sensorPin, switchPin, deviceId);
+                plugin = new RPGarageDoorPlugin(sensorPin, switchPin, deviceId, debounce);
                 break;
             default : 
-                plugin = new RPSwitchDevicePlugin(sensorPin, switchPin, deviceId);
+                plugin = new RPSwitchDevicePlugin(sensorPin, switchPin, deviceId, debounce);
                 break;
         }
         
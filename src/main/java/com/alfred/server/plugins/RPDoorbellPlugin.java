@@ -1,10 +1,7 @@
 package com.alfred.server.plugins;
 
 import java.net.Socket;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,15 +13,12 @@ import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
 import com.alfred.common.network.NetworkHandler;
+import com.alfred.server.gpio.Gpio;
+import com.alfred.server.gpio.InputPin;
+import com.alfred.server.gpio.PinListener;
 import com.alfred.server.server.Server;
-import com.alfred.server.utils.PinConverter;
-import com.pi4j.io.gpio.GpioController;
-import com.pi4j.io.gpio.GpioFactory;
-import com.pi4j.io.gpio.GpioPinDigitalInput;
-import com.pi4j.io.gpio.PinPullResistance;
-import com.pi4j.io.gpio.PinState;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+import com.alfred.server.utils.Debouncer;
+import com.alfred.server.utils.Scheduler;
 
 
 /**
@@ -59,7 +53,9 @@ public class RPDoorbellPlugin implements DevicePlugin {
 
     private int pin;
     private String myDeviceId;
-    private GpioPinListenerDigital pinHandler = null;
+    private Debouncer debouncer;
+    private PinListener pinHandler = null;
+    private InputPin sensor = null;
     private DoorbellStateHandler stateHandler = null;
     private DoorbellNetworkHandler networkHandler = null;
     
@@ -76,8 +72,26 @@ public class RPDoorbellPlugin implements DevicePlugin {
      *            instance
      */
     public RPDoorbellPlugin(int pin, String deviceId) {
+        this(pin, deviceId, Debouncer.DEFAULT_BUTTON_WINDOW);
+    }
+
+    /**
+     * Constructor order is pin, deviceId, debounce.
+     * 
+     * @param pin
+     *            The pin on the Raspberry Pi to which the sensor device is
+     *            connected
+     * @param deviceId
+     *            The ID of the device that is associated with this plugin
+     *            instance
+     * @param debounce
+     *            The time in milliseconds after a button press during which
+     *            further presses are ignored
+     */
+    public RPDoorbellPlugin(int pin, String deviceId, long debounce) {
         this.pin = pin;
         this.myDeviceId = deviceId;
+        this.debouncer = new Debouncer(deviceId, debounce, true);
     }
 
     @Override
@@ -85,30 +99,36 @@ public class RPDoorbellPlugin implements DevicePlugin {
         // Raspberry pi handler
         log.info("Adding plugin for pin " + pin);
         pinHandler = new DoorbellSensorHandler();
-        GpioController gpio = GpioFactory.getInstance();
-        GpioPinDigitalInput input = gpio.provisionDigitalInputPin(
-                    PinConverter.ModelB.fromInt(pin),
-                    "Input",
-                    PinPullResistance.PULL_DOWN);
-        input.addListener(pinHandler);
+        sensor = Gpio.getBackend().provisionInput(pin, "Input");
+        sensor.addListener(pinHandler);
         
         // State handler
         if(stateHandler == null) {
             stateHandler = new DoorbellStateHandler();
-            StateDeviceManager.addDeviceHandler(stateHandler);
+            Server.addDeviceHandler(stateHandler);
         }
         
         // Network handler
         if(networkHandler == null) {
             networkHandler = new DoorbellNetworkHandler();
-            Server.addNetworkHandler(networkHandler);
+            Server.addNetworkHandler(myDeviceId, networkHandler);
         }
     }
 
     public void deactivate() {
+        // Pending reset
+        Scheduler.cancel(resetKey());
+        debouncer.cancel();
+
+        // Raspberry pi pin
+        if(sensor != null) {
+            Gpio.getBackend().release(pin);
+            sensor = null;
+        }
+
      // State handler
         if(stateHandler != null) {
-            StateDeviceManager.removeDeviceHandler(stateHandler);
+            Server.removeDeviceHandler(stateHandler);
             stateHandler = null;
         }
         
@@ -119,17 +139,24 @@ public class RPDoorbellPlugin implements DevicePlugin {
         }
     }
 
+    /**
+     * Helper method to get the key of this device's reset task
+     */
+    private String resetKey() {
+        return "doorbell-reset:" + myDeviceId;
+    }
+
     /**
      * This class handles input changes from the Raspberry Pi GPIO pins
      * @author kevin
      *
      */
-    public class DoorbellSensorHandler implements GpioPinListenerDigital {
+    public class DoorbellSensorHandler implements PinListener {
         
         @Override
-        public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
-            if (event.getState() == PinState.HIGH) {
-                log.info(myDeviceId + " event detected : " + event.getState());
+        public void onEdge(int pin, boolean high) {
+            if (high) {
+                log.info(myDeviceId + " event detected : HIGH");
                 StateDevice deviceClone = StateDeviceManager.getDevice(myDeviceId);
                 State newState;
                 if (deviceClone.getState() != State.ACTIVE) {
@@ -140,7 +167,7 @@ public class RPDoorbellPlugin implements DevicePlugin {
                 }
                 
                 // update the state
-                StateDeviceManager.updateStateDevice(myDeviceId, newState);
+                debouncer.update(newState);
             } 
         }
     }
@@ -153,10 +180,6 @@ public class RPDoorbellPlugin implements DevicePlugin {
      */
     public class DoorbellStateHandler implements StateDeviceHandler {
 
-        private Timer timer = null;
-        private DoorbellResetTask resetTask = null;
-
-        
         @Override
         public void onAddDevice(StateDevice device) {
             // filter message based on this plugin's device id
@@ -181,8 +204,10 @@ public class RPDoorbellPlugin implements DevicePlugin {
                 // if the device is being set to Active start a timer
                 // to reset the state after a specified interval
                 if (device.getState() == State.ACTIVE) {
-                    timer = new Timer();
                     startResetTimer(2, device);
+                } else {
+                    // the doorbell was reset, a pending reset is no longer needed
+                    Scheduler.cancel(resetKey());
                 }
 
                 // build and send message
@@ -207,32 +232,32 @@ public class RPDoorbellPlugin implements DevicePlugin {
         }
 
         /**
-         * This helper method schedules the reset doorbell task
+         * This helper method schedules the reset doorbell task on the shared
+         * scheduler. A reset that is already pending for the device is
+         * replaced, so the device is reset the given time after its latest
+         * activation
          * 
          * @param minutes delay in minutes for the reset timer
          * @param device reference to the state device
          */
         public void startResetTimer(int minutes, StateDevice device) {
-            resetTask = new DoorbellResetTask(device);
-            Calendar calendar = Calendar.getInstance();
-            calendar.add(Calendar.MINUTE, minutes);
-            Date endTime = calendar.getTime();
+            DoorbellResetTask resetTask = new DoorbellResetTask(device);
             log.info("Scheduling reset timer");
             if (!resetTask.hasDevice()) {
                 log.error("Error - reset task does not have a registered device");
-            } else {
-                timer.schedule(resetTask, endTime);
+            } else if (Scheduler.schedule(resetKey(), resetTask, minutes, TimeUnit.MINUTES)) {
+                log.info("Pending reset timer rescheduled");
             }
         }
 
         /**
-         * Class to reset the doorbell state to inactive. This timer task is
+         * Class to reset the doorbell state to inactive. This task is
          * scheduled by the parent class
          * 
          * @author Kevin Kanzelmeyer
          *
          */
-        public class DoorbellResetTask extends TimerTask {
+        public class DoorbellResetTask implements Runnable {
 
             private StateDevice device = null;
 
@@ -254,7 +279,7 @@ public class RPDoorbellPlugin implements DevicePlugin {
             }
 
             /**
-             * Task to be executed when the timer scheduler calls it
+             * Task to be executed when the scheduler calls it
              */
             @Override
             public void run() {
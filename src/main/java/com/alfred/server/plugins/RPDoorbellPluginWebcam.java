@@ -1,14 +1,20 @@
 package com.alfred.server.plugins;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
@@ -24,17 +30,20 @@ import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
 import com.alfred.common.network.NetworkHandler;
 import com.alfred.server.email.VisitorEmail;
+import com.alfred.server.gpio.Gpio;
+import com.alfred.server.gpio.InputPin;
+import com.alfred.server.gpio.PinListener;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
+import com.alfred.server.server.ControlHandler;
+import com.alfred.server.server.ControlMessages;
 import com.alfred.server.server.Server;
+import com.alfred.server.server.ServerConnection;
 import com.alfred.server.utils.Config;
-import com.alfred.server.utils.PinConverter;
+import com.alfred.server.utils.Debouncer;
+import com.alfred.server.utils.ImageStore;
+import com.alfred.server.utils.Scheduler;
 import com.google.protobuf.ByteString;
-import com.pi4j.io.gpio.GpioController;
-import com.pi4j.io.gpio.GpioFactory;
-import com.pi4j.io.gpio.GpioPinDigitalInput;
-import com.pi4j.io.gpio.PinPullResistance;
-import com.pi4j.io.gpio.PinState;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
 
 
 /**
@@ -59,6 +68,14 @@ import com.pi4j.io.gpio.event.GpioPinListenerDigital;
  * <li><b>Network Handler:</b> The network handler receives messages and updates
  * the state accordingly</li>
  * </ul>
+ * <p>
+ * By default the state message sent to clients that understand control
+ * messages carries a small thumbnail of the picture, which is all most
+ * clients show. The full resolution picture of the latest events is kept in
+ * memory, and those clients can request it with the event id announced after
+ * the state message. Older clients cannot request it, so they are always sent
+ * the full picture. Set alfred.image.broadcast to "full" to send the full
+ * picture to every client.
  * 
  * @author Kevin Kanzelmeyer
  *
@@ -67,11 +84,51 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
 
     private int pin;
     private String myDeviceId;
-    private GpioPinDigitalInput sensor = null;
+    private Debouncer debouncer;
+    private InputPin sensor = null;
     private DoorbellStateHandler stateHandler = null;
     private DoorbellNetworkHandler networkHandler = null;
+    // guarded by the RPDoorbellPluginWebcam class lock
+    private boolean usingShared = false;
+
+    public static final int DEFAULT_THUMBNAIL_WIDTH = 160;
+    private static final int MAX_RECENT_IMAGES = 8;
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    // Full resolution pictures of the latest events of every webcam doorbell,
+    // by event id ("deviceId-timestamp")
+    final private static Map<String, ByteString> recentImages = Collections.synchronizedMap(
+            new LinkedHashMap<String, ByteString>(MAX_RECENT_IMAGES, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ByteString> eldest) {
+                    return size() > MAX_RECENT_IMAGES;
+                }
+            });
+    final private static ImageRequestHandler imageRequestHandler = new ImageRequestHandler();
+
+    // Saved visitor images, opened on first use
+    private static ImageStore imageStore = null;
+
+    // The number of active webcam doorbells. The webcam, the pictures and the
+    // image request handler are shared, and released with the last one
+    private static int sharedUsers = 0;
     
     final private static Logger log = LoggerFactory.getLogger(RPDoorbellPluginWebcam.class);
+    final private static Histogram encodeTime = Metrics.histogram("alfred_jpeg_encode_seconds",
+            "Time to encode a webcam picture or thumbnail as a JPEG");
+
+    // Saves visitor images in the background, one at a time
+    final private static ExecutorService diskWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "alfred-image-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     
     /**
      * Constructor order is pin, deviceId.
@@ -84,38 +141,70 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
      *            instance
      */
     public RPDoorbellPluginWebcam(int pin, String deviceId) {
+        this(pin, deviceId, Debouncer.DEFAULT_BUTTON_WINDOW);
+    }
+
+    /**
+     * Constructor order is pin, deviceId, debounce.
+     * 
+     * @param pin
+     *            The pin on the Raspberry Pi to which the sensor device is
+     *            connected
+     * @param deviceId
+     *            The ID of the device that is associated with this plugin
+     *            instance
+     * @param debounce
+     *            The time in milliseconds after a button press during which
+     *            further presses are ignored
+     */
+    public RPDoorbellPluginWebcam(int pin, String deviceId, long debounce) {
         this.pin = pin;
         this.myDeviceId = deviceId;
+        this.debouncer = new Debouncer(deviceId, debounce, true);
     }
 
     @Override
     public void activate() {
         // Raspberry pi handler
         log.info("Adding plugin for pin " + pin);
-        GpioController gpio = GpioFactory.getInstance();
-        sensor = gpio.provisionDigitalInputPin(
-                    PinConverter.ModelB.fromInt(pin),
-                    "Input",
-                    PinPullResistance.PULL_DOWN);
+        sensor = Gpio.getBackend().provisionInput(pin, "Input");
         sensor.addListener(new DoorbellSensorHandler());
+
+        // Open the webcam in the background so it is warm when the first
+        // visitor arrives. This only starts the capture thread, the V4L4J
+        // driver is loaded and the camera opened on that thread
+        WebCamService.getInstance();
         
         // State handler
         if(stateHandler == null) {
             stateHandler = new DoorbellStateHandler();
-            StateDeviceManager.addDeviceHandler(stateHandler);
+            Server.addDeviceHandler(stateHandler);
         }
         
         // Network handler
         if(networkHandler == null) {
             networkHandler = new DoorbellNetworkHandler();
-            Server.addNetworkHandler(networkHandler);
+            Server.addNetworkHandler(myDeviceId, networkHandler);
         }
+
+        // Full resolution image requests, shared by every webcam doorbell
+        acquireShared();
     }
     
     public void deactivate() {
+        // Pending reset
+        Scheduler.cancel(resetKey());
+        debouncer.cancel();
+
+        // Raspberry pi pin
+        if(sensor != null) {
+            Gpio.getBackend().release(pin);
+            sensor = null;
+        }
+
      // State handler
         if(stateHandler != null) {
-            StateDeviceManager.removeDeviceHandler(stateHandler);
+            Server.removeDeviceHandler(stateHandler);
             stateHandler = null;
         }
         
@@ -124,6 +213,53 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
             Server.removeNetworkHandler(networkHandler);
             networkHandler = null;
         }
+
+        // Release the webcam and the pictures if this was the last webcam
+        // doorbell, a reload may deactivate one doorbell and keep another
+        releaseShared();
+    }
+
+    /**
+     * Helper method to count this plugin as a user of the shared resources,
+     * registering the image request handler for the first one
+     */
+    private void acquireShared() {
+        synchronized (RPDoorbellPluginWebcam.class) {
+            if (usingShared) {
+                return;
+            }
+            usingShared = true;
+            if (sharedUsers++ == 0) {
+                Server.addControlHandler(ControlMessages.IMAGE, imageRequestHandler);
+            }
+        }
+    }
+
+    /**
+     * Helper method to stop counting this plugin as a user of the shared
+     * resources, releasing them after the last one
+     */
+    private void releaseShared() {
+        synchronized (RPDoorbellPluginWebcam.class) {
+            if (!usingShared) {
+                return;
+            }
+            usingShared = false;
+            if (--sharedUsers > 0) {
+                return;
+            }
+            Server.removeControlHandler(ControlMessages.IMAGE, imageRequestHandler);
+            WebCamService.shutdown();
+            recentImages.clear();
+            closeImageStore();
+        }
+    }
+
+    /**
+     * Helper method to get the key of this device's reset task
+     */
+    private String resetKey() {
+        return "doorbell-reset:" + myDeviceId;
     }
 
     /**
@@ -132,12 +268,12 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
      * @author Kevin Kanzelmeyer
      *
      */
-    public class DoorbellSensorHandler implements GpioPinListenerDigital {
+    public class DoorbellSensorHandler implements PinListener {
         
         @Override
-        public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
-            if (event.getState() == PinState.HIGH) {
-                log.info(myDeviceId + " event detected : " + event.getState());
+        public void onEdge(int pin, boolean high) {
+            if (high) {
+                log.info(myDeviceId + " event detected : HIGH");
                 StateDevice deviceClone = StateDeviceManager.getDevice(myDeviceId);
                 State newState;
                 if (deviceClone.getState() != State.ACTIVE) {
@@ -148,7 +284,7 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
                 }
                 
                 // update the state
-                StateDeviceManager.updateStateDevice(myDeviceId, newState);
+                debouncer.update(newState);
             } 
         }
     }
@@ -162,8 +298,6 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
     public class DoorbellStateHandler implements StateDeviceHandler {
 
         private Builder messageBuilder;
-        private Timer timer = null;
-        private DoorbellResetTask resetTask = null;
 
         
         @Override
@@ -198,14 +332,16 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
                 // if the state is being set to Active, take a picture
                 // and let the callback finish sending the message
                 if (device.getState() == State.ACTIVE) {
-                    // Start a thread to take a picture from the webcam
+                    // Start a thread to pick up a picture from the webcam
                     WebCameraThread webCamThread = new WebCameraThread(new TakePictureCallback());
                     new Thread(webCamThread).start();
                     
                     // start a reset timer
-                    timer = new Timer();
                     startResetTimer(2, device);
                 } else {
+                    // the doorbell was reset, a pending reset is no longer needed
+                    Scheduler.cancel(resetKey());
+
                     // if the state is not being set to active, just send the
                     // state update message
                     StateDeviceMessage msg = messageBuilder.build();
@@ -225,22 +361,21 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
         }
 
         /**
-         * This helper method schedules the reset doorbell task
+         * This helper method schedules the reset doorbell task on the shared
+         * scheduler. A reset that is already pending for the device is
+         * replaced, so the device is reset the given time after its latest
+         * activation
          * 
          * @param minutes delay in minutes for the reset timer
          * @param device reference to the state device
          */
         public void startResetTimer(int minutes, StateDevice device) {
-            resetTask = new DoorbellResetTask();
-            resetTask.addDevice(device);
-            Calendar calendar = Calendar.getInstance();
-            calendar.add(Calendar.MINUTE, minutes);
-            Date endTime = calendar.getTime();
+            DoorbellResetTask resetTask = new DoorbellResetTask(device);
             log.info("Scheduling reset timer");
             if (!resetTask.hasDevice()) {
                 log.error("Error - reset task does not have a registered device");
-            } else {
-                timer.schedule(resetTask, endTime);
+            } else if (Scheduler.schedule(resetKey(), resetTask, minutes, TimeUnit.MINUTES)) {
+                log.info("Pending reset timer rescheduled");
             }
         }
 
@@ -255,40 +390,70 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
         public class TakePictureCallback implements WebCamCallback {
 
             /**
-             * This method adds the image to the message that was started in the
-             * parent class onDeviceUpdate method. After the message is built it
-             * is sent to each client, then the image is saved as a file, then
-             * an email is sent to email clients
+             * This method completes the message that was started in the
+             * parent class onDeviceUpdate method and sends it to each client.
+             * Clients that understand control messages get a thumbnail of the
+             * picture unless full pictures are configured, since they can
+             * request the full picture. Older clients cannot, so they always
+             * get the full picture. The full picture is encoded as a JPEG once
+             * and the encoded bytes are shared between the consumers: the
+             * message, the recent image cache for client requests, the image
+             * file saved in the background, and the email to email clients
              */
             @Override
             public void onComplete(RenderedImage image) {
                 log.info("Finished taking picture. Adding to message");
-                // Send the message
-                StateDeviceMessage msg = null;
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                try {
-                    ImageIO.write(image, "jpg", baos);
-                    byte[] imageBytes = baos.toByteArray();
-                    messageBuilder.setData(ByteString.copyFrom(imageBytes));
-                    msg = messageBuilder.build();
-                    Server.sendMessage(msg);
-                } catch (IOException e1) {
-                    log.error("Unable to read image file" + image, e1);
+                if (image == null) {
+                    log.error("No image from webcam, sending state update only");
+                    Server.sendMessage(messageBuilder.build());
+                    return;
                 }
 
-                // Save the image to a file
-                log.info("Saving image file on server");
-                String filepath = Server.getProperty(Config.IMAGE_PATH);
-                String date = String.valueOf(System.currentTimeMillis());
-                String filename = "visitor" + date + ".jpg";
+                // The event id identifies the picture in client requests
+                final long time = System.currentTimeMillis();
+                String date = String.valueOf(time);
+                String eventId = myDeviceId + "-" + date;
+
+                // Send the message first so clients are notified as soon as possible
+                ByteString encoded;
+                StateDeviceMessage fullMsg;
+                StateDeviceMessage msg;
                 try {
-                    File outputfile = new File(filepath + filename);
-                    ImageIO.write(image, "jpg", outputfile);
-                    log.info("Finished saving");
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    encoded = encode(image);
+                    fullMsg = messageBuilder.setData(encoded).build();
+                    if ("full".equalsIgnoreCase(Server.getProperty(Config.IMAGE_BROADCAST))) {
+                        msg = fullMsg;
+                    } else {
+                        int width = (int) Server.getLongProperty(Config.THUMBNAIL_WIDTH, DEFAULT_THUMBNAIL_WIDTH);
+                        msg = messageBuilder.setData(encode(createThumbnail(image, width))).build();
+                    }
+                } catch (IOException e1) {
+                    log.error("Unable to encode image" + image, e1);
+                    Server.sendMessage(messageBuilder.clearData().build());
+                    return;
                 }
+                Server.sendMessage(msg, fullMsg);
+                Server.sendControlMessage(ControlMessages.create(ControlMessages.EVENT, eventId));
+
+                final ByteString jpeg = encoded;
+                recentImages.put(eventId, jpeg);
+
+                // Save the image to the image store without holding up the email
+                diskWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        log.info("Saving image on server");
+                        try {
+                            ImageStore store = getImageStore();
+                            if (store != null) {
+                                store.append(time, jpeg);
+                                log.info("Finished saving");
+                            }
+                        } catch (IOException e) {
+                            log.error("Unable to save image " + time, e);
+                        }
+                    }
+                });
                 
                 // send email
                 Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
@@ -296,42 +461,42 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
                 log.info("Creating email on thread " + Thread.currentThread().getId());
                 VisitorEmail email = new VisitorEmail();
                 email.setDate(date);
-                email.setImagePath(filepath + filename);
+                email.setImage(jpeg);
                 email.setSubject("Visitor at the " + msg.getName());
                 Server.sendEmail(email);
             }
         }
 
         /**
-         * Class to reset the doorbell state to inactive. This timer task is
+         * Class to reset the doorbell state to inactive. This task is
          * scheduled by the parent class
          * 
          * @author Kevin Kanzelmeyer
          *
          */
-        public class DoorbellResetTask extends TimerTask {
+        public class DoorbellResetTask implements Runnable {
 
             private StateDevice device = null;
 
             /**
-             * Method to add a state device for the reset task
+             * Constructor to add a state device for the reset task
              * @param stateDevice A reference to a State Device
              */
-            public void addDevice(StateDevice stateDevice) {
+            public DoorbellResetTask(StateDevice stateDevice) {
                 device = stateDevice;
             }
 
             /**
              * Method to check if a device has been set
              * 
-             * @return True if the timer task has an associate device. False otherwise
+             * @return True if the task has an associate device. False otherwise
              */
             public boolean hasDevice() {
                 return (device != null);
             }
 
             /**
-             * Task to be executed when the timer scheduler calls it
+             * Task to be executed when the scheduler calls it
              */
             @Override
             public void run() {
@@ -341,6 +506,132 @@ public class RPDoorbellPluginWebcam implements DevicePlugin {
         }
     }
 
+    /**
+     * Helper method to get the image store in the image path, opening it on
+     * first use
+     * 
+     * @return The image store, or null if it cannot be opened
+     */
+    private static synchronized ImageStore getImageStore() {
+        if (imageStore == null) {
+            String path = Server.getProperty(Config.IMAGE_PATH);
+            if (path == null || path.trim().isEmpty()) {
+                log.error("No image path configured, images are not saved");
+                return null;
+            }
+            // sizes are configured in megabytes and the age in days
+            long segmentSize = Server.getLongProperty(Config.IMAGE_SEGMENT_SIZE, ImageStore.DEFAULT_SEGMENT_SIZE / MEGABYTE);
+            long maxSize = Server.getLongProperty(Config.IMAGE_MAX_SIZE, ImageStore.DEFAULT_MAX_SIZE / MEGABYTE);
+            long maxAge = Server.getLongProperty(Config.IMAGE_MAX_AGE, ImageStore.DEFAULT_MAX_AGE / DAY);
+            ImageStore store = new ImageStore(new File(path.trim()), segmentSize * MEGABYTE, maxSize * MEGABYTE,
+                    maxAge * DAY);
+            try {
+                store.open();
+                imageStore = store;
+            } catch (IOException e) {
+                log.error("Unable to open image store " + path, e);
+            }
+        }
+        return imageStore;
+    }
+
+    /**
+     * Helper method to close the image store
+     */
+    private static synchronized void closeImageStore() {
+        if (imageStore != null) {
+            imageStore.close();
+            imageStore = null;
+        }
+    }
+
+    /**
+     * Helper method to read the image of an event ("deviceId-timestamp") from
+     * the image store
+     * 
+     * @return The image, or null if it is not in the store
+     */
+    private static ByteString readStoredImage(String eventId) {
+        ImageStore store = getImageStore();
+        int separator = eventId.lastIndexOf('-');
+        if (store == null || separator < 0) {
+            return null;
+        }
+        try {
+            ImageStore.StoredImage stored = store.get(Long.parseLong(eventId.substring(separator + 1)));
+            return stored != null ? store.read(stored) : null;
+        } catch (NumberFormatException | IOException e) {
+            log.error("Unable to read stored image of " + eventId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to encode an image as a JPEG
+     */
+    private static ByteString encode(RenderedImage image) throws IOException {
+        long start = System.nanoTime();
+        ByteString.Output out = ByteString.newOutput();
+        ImageIO.write(image, "jpg", out);
+        encodeTime.recordSince(start);
+        return out.toByteString();
+    }
+
+    /**
+     * Helper method to scale an image down to the given width, keeping its
+     * aspect ratio. Images that are already small enough are not scaled
+     */
+    private static RenderedImage createThumbnail(RenderedImage image, int width) {
+        if (width <= 0 || image.getWidth() <= width) {
+            return image;
+        }
+        double scale = (double) width / image.getWidth();
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawRenderedImage(image, AffineTransform.getScaleInstance(scale, scale));
+        } finally {
+            graphics.dispose();
+        }
+        return thumbnail;
+    }
+
+    /**
+     * The image request handler answers "alfred:image" control messages with
+     * the full resolution picture of the requested event. The reply has no
+     * data if the picture is no longer in memory
+     * 
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    public static class ImageRequestHandler implements ControlHandler {
+
+        @Override
+        public void onControlMessage(ServerConnection connection, StateDeviceMessage msg) {
+            String eventId = msg.getName();
+            ByteString image = recentImages.get(eventId);
+            if (image == null) {
+                image = readStoredImage(eventId);
+            }
+            StateDeviceMessage reply;
+            if (image != null) {
+                log.info("Sending full image of " + eventId + " to " + connection);
+                reply = ControlMessages.create(ControlMessages.IMAGE, eventId, image);
+            } else {
+                log.info("Image of " + eventId + " requested by " + connection + " is not available");
+                reply = ControlMessages.create(ControlMessages.IMAGE, eventId);
+            }
+            try {
+                connection.send(reply);
+            } catch (IOException e) {
+                log.error("Sending image to " + connection + " failed", e);
+            }
+        }
+    }
+
     /**
      * The doorbell network handler is responsible for updating the state device
      * manager with the new state received from the message
@@ -11,16 +11,13 @@ import com.alfred.common.handlers.StateDeviceHandler;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
 import com.alfred.common.network.NetworkHandler;
+import com.alfred.server.gpio.Gpio;
+import com.alfred.server.gpio.GpioBackend;
+import com.alfred.server.gpio.InputPin;
+import com.alfred.server.gpio.OutputPin;
+import com.alfred.server.gpio.PinListener;
 import com.alfred.server.server.Server;
-import com.alfred.server.utils.PinConverter;
-import com.pi4j.io.gpio.GpioController;
-import com.pi4j.io.gpio.GpioFactory;
-import com.pi4j.io.gpio.GpioPinDigitalInput;
-import com.pi4j.io.gpio.GpioPinDigitalOutput;
-import com.pi4j.io.gpio.PinPullResistance;
-import com.pi4j.io.gpio.PinState;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+import com.alfred.server.utils.Debouncer;
 
 /**
  * Raspberry Pi Plugin for a garage door. This plugin has four primary
@@ -47,8 +44,9 @@ public class RPGarageDoorPlugin implements DevicePlugin {
     private int sensorPin;
     private int switchPin;
     private String myDeviceId;
-    private GpioPinDigitalInput sensor = null;
-    private GpioPinDigitalOutput button = null;
+    private Debouncer debouncer;
+    private InputPin sensor = null;
+    private OutputPin button = null;
     private GarageDoorStateHandler stateHandler = null;
     private GarageDoorNetworkHandler networkHandler = null;
 
@@ -68,9 +66,29 @@ public class RPGarageDoorPlugin implements DevicePlugin {
      *            the id of the device associate with this plugin instance
      */
     public RPGarageDoorPlugin(int sensorPin, int switchPin, String deviceId) {
+        this(sensorPin, switchPin, deviceId, Debouncer.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructor - order is sensor pin, switchPin pin, device id, debounce
+     * 
+     * @param sensorPin
+     *            the pin number on the Raspberry pi on which the device's
+     *            sensor is connected
+     * @param switchPin
+     *            the pin number on the Raspberry pi on which the device's
+     *            switch (button, transistor, relay, etc) is connected
+     * @param deviceId
+     *            the id of the device associate with this plugin instance
+     * @param debounce
+     *            the time in milliseconds the sensor has to be steady before
+     *            its state is used
+     */
+    public RPGarageDoorPlugin(int sensorPin, int switchPin, String deviceId, long debounce) {
         this.myDeviceId = deviceId;
         this.sensorPin = sensorPin;
         this.switchPin = switchPin;
+        this.debouncer = new Debouncer(deviceId, debounce, false);
     }
 
     @Override
@@ -79,16 +97,13 @@ public class RPGarageDoorPlugin implements DevicePlugin {
         try {
             // Create digital listener for garage door sensor
             log.info("Adding plugin for pin " + sensorPin);
-            GpioController gpio = GpioFactory.getInstance();
-            sensor = gpio.provisionDigitalInputPin(PinConverter.ModelB.fromInt(sensorPin), "Sensor",
-                    PinPullResistance.PULL_DOWN);
+            GpioBackend gpio = Gpio.getBackend();
+            sensor = gpio.provisionInput(sensorPin, "Sensor");
             sensor.addListener(new GarageDoorSensorHandler());
 
             // create digital output for garage door button
             log.info("Adding plugin for pin " + switchPin);
-            button = gpio.provisionDigitalOutputPin(PinConverter.ModelB.fromInt(switchPin),
-                    "Button",
-                    PinState.LOW);
+            button = gpio.provisionOutput(switchPin, "Button");
         } catch (Exception e) {
             log.error("Exception caught", e);
         }
@@ -96,18 +111,44 @@ public class RPGarageDoorPlugin implements DevicePlugin {
         // State Handler
         if (stateHandler == null) {
             stateHandler = new GarageDoorStateHandler();
-            StateDeviceManager.addDeviceHandler(stateHandler);
+            Server.addDeviceHandler(stateHandler);
         }
 
         // Network Handler
         if (networkHandler == null) {
             networkHandler = new GarageDoorNetworkHandler();
-            Server.addNetworkHandler(networkHandler);
+            Server.addNetworkHandler(myDeviceId, networkHandler);
         }
     }
 
     @Override
-    public void deactivate() { }
+    public void deactivate() {
+        // Held sensor update
+        debouncer.cancel();
+
+        // Raspberry Pi pins
+        GpioBackend gpio = Gpio.getBackend();
+        if (sensor != null) {
+            gpio.release(sensorPin);
+            sensor = null;
+        }
+        if (button != null) {
+            gpio.release(switchPin);
+            button = null;
+        }
+
+        // State Handler
+        if (stateHandler != null) {
+            Server.removeDeviceHandler(stateHandler);
+            stateHandler = null;
+        }
+
+        // Network Handler
+        if (networkHandler != null) {
+            Server.removeNetworkHandler(networkHandler);
+            networkHandler = null;
+        }
+    }
 
     /**
      * Raspberry Pi hardware handler for the garage door sensor switch. This
@@ -117,20 +158,20 @@ public class RPGarageDoorPlugin implements DevicePlugin {
      * @author Kevin Kanzelmeyer
      *
      */
-    public class GarageDoorSensorHandler implements GpioPinListenerDigital {
+    public class GarageDoorSensorHandler implements PinListener {
 
         @Override
-        public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
+        public void onEdge(int pin, boolean high) {
             // input has a pull down resistor, so it is low when the switch is open
             State newState;
-            if (event.getState() == PinState.HIGH) {
+            if (high) {
                 newState = State.CLOSED;
             } else {
                 newState = State.OPEN;
             }
 
-            // update the state device
-            StateDeviceManager.updateStateDevice(myDeviceId, newState);
+            // update the state device once the sensor settles
+            debouncer.update(newState);
         }
     }
 
@@ -2,7 +2,11 @@ package com.alfred.server.plugins;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,17 +15,29 @@ import com.alfred.common.datamodel.StateDevice;
 import com.alfred.common.datamodel.StateDeviceManager;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
 import com.alfred.common.network.NetworkHandler;
+import com.alfred.server.server.ControlHandler;
+import com.alfred.server.server.ControlMessages;
+import com.alfred.server.server.Frame;
 import com.alfred.server.server.Server;
+import com.alfred.server.server.ServerConnection;
+import com.alfred.server.server.StateChangeLog;
+import com.alfred.server.utils.Config;
+import com.alfred.server.utils.Scheduler;
 
 /**
- * This plugin was created to encapsulate the NewConnectionHandler. 
- * 
+ * This plugin was created to encapsulate the NewConnectionHandler, the
+ * HelloHandler and the ResumeHandler.
+ *
  * @author Kevin Kanzelmeyer
  *
  */
 public class ServerConnectionPlugin implements DevicePlugin {
-    
+
+    public static final long DEFAULT_RESUME_GRACE = 0;
+
     private NewConnectionHandler newConnectionHandler = null;
+    private ResumeHandler resumeHandler = null;
+    private HelloHandler helloHandler = null;
 
     private static final Logger log = LoggerFactory.getLogger(ServerConnectionPlugin.class);
 
@@ -31,8 +47,16 @@ public class ServerConnectionPlugin implements DevicePlugin {
             newConnectionHandler = new NewConnectionHandler();
             Server.addNetworkHandler(newConnectionHandler);
         }
+        if(resumeHandler == null) {
+            resumeHandler = new ResumeHandler();
+            Server.addControlHandler(ControlMessages.RESUME, resumeHandler);
+        }
+        if(helloHandler == null) {
+            helloHandler = new HelloHandler();
+            Server.addControlHandler(ControlMessages.HELLO, helloHandler);
+        }
     }
-    
+
 
     public void deactivate() {
         if(newConnectionHandler != null) {
@@ -40,49 +64,160 @@ public class ServerConnectionPlugin implements DevicePlugin {
             Server.removeNetworkHandler(newConnectionHandler);
             newConnectionHandler = null;
         }
+        if(resumeHandler != null) {
+            Server.removeControlHandler(ControlMessages.RESUME, resumeHandler);
+            resumeHandler = null;
+        }
+        if(helloHandler != null) {
+            Server.removeControlHandler(ControlMessages.HELLO, helloHandler);
+            helloHandler = null;
+        }
+    }
+
+    /**
+     * Helper method to get the key of a connection's pending snapshot
+     */
+    private static String snapshotKey(ServerConnection connection) {
+        return "snapshot:" + connection.getId();
+    }
+
+    /**
+     * Helper method to send a snapshot of every device to a client, as one
+     * frame, followed by the version it is current to
+     */
+    private static void sendSnapshot(ServerConnection connection) {
+        long version = Server.getChangeLog().getVersion();
+        List<StateDeviceMessage> messages = new ArrayList<>();
+        HashMap<String, StateDevice> deviceList = StateDeviceManager.getAllDevices();
+        for (StateDevice device : deviceList.values()) {
+            messages.add(StateDeviceMessage.newBuilder().setId(device.getId()).setName(device.getName())
+                    .setType(device.getType()).setState(device.getState()).build());
+        }
+        log.info("Sending " + messages.size() + " devices to " + connection);
+        send(connection, messages, version);
+    }
+
+    /**
+     * Helper method to send a batch of state messages to a client as one
+     * frame, followed by a version message if the client understands it
+     */
+    private static void send(ServerConnection connection, List<StateDeviceMessage> messages, long version) {
+        try {
+            if (!messages.isEmpty()) {
+                connection.send(Frame.encodeAll(messages));
+            }
+            if (connection.isControlEnabled()) {
+                connection.send(ControlMessages.create(ControlMessages.VERSION, String.valueOf(version)));
+            }
+        } catch (IOException e) {
+            log.error("Writing to socket failed", e);
+        }
     }
 
     /**
      * The NewConnectionHandler is responsible for sending the current State to
      * all client connections.
-     * 
+     *
      * For example, the server may be running for some length of time, and it
      * may be managing several devices like doorbells, lights, garage doors,
      * etc. The devices could be in any state (open, closed, on, off, etc). When
      * your phone connects it needs to get an accurate snapshot of each device.
      * When it connects to the server this handler sends a snapshot of each
      * devices to the new client.
-     * 
+     *
+     * By default the snapshot is sent at once, since older clients never ask
+     * to resume. With a grace period (alfred.network.resumegrace) the
+     * snapshot waits, so a reconnecting client has time to ask for only the
+     * changes it missed instead.
+     *
      * @author Kevin Kanzelmeyer
      *
      */
     public class NewConnectionHandler implements NetworkHandler {
-        
+
         @Override
-        public void onConnect(Socket connection) {
-            
-            // Send complete data model
-            HashMap<String, StateDevice> deviceList = StateDeviceManager.getAllDevices();
-            if (deviceList.size() > 0) {
-                for (String id : deviceList.keySet()) {
-                    StateDevice device = deviceList.get(id);
-                    StateDeviceMessage msg = StateDeviceMessage.newBuilder().setId(device.getId()).setName(device.getName())
-                            .setType(device.getType()).setState(device.getState()).build();
-                    try {
-                        log.info("Sending device");
-                        log.info("\n" + msg.toString());
-                        msg.writeDelimitedTo(connection.getOutputStream());
-                    } catch (IOException e) {
-                        log.error("Writing to socket failed", e);
+        public void onConnect(final Socket socket) {
+            final ServerConnection connection = Server.getServerConnection(socket);
+            if (connection == null) {
+                log.error("New connection is not registered with the server");
+                return;
+            }
+            long grace = Server.getLongProperty(Config.RESUME_GRACE, DEFAULT_RESUME_GRACE);
+            if (grace <= 0) {
+                sendSnapshot(connection);
+                return;
+            }
+            Scheduler.schedule(snapshotKey(connection), new Runnable() {
+                @Override
+                public void run() {
+                    // the client may have disconnected while we waited
+                    if (Server.getServerConnection(socket) == connection) {
+                        sendSnapshot(connection);
                     }
                 }
-            } else {
-                log.info("No devices found");
-            }
+            }, grace, TimeUnit.MILLISECONDS);
         }
 
         @Override
         public void onMessageReceived(StateDeviceMessage msg) { }
 
     }
+
+    /**
+     * The ResumeHandler answers "alfred:resume" control messages from
+     * reconnecting clients. Instead of a snapshot of every device, the client
+     * is sent the latest state of each device that changed since the version
+     * it saw last. If the state change log no longer goes back that far the
+     * client is sent the snapshot after all
+     *
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    public class ResumeHandler implements ControlHandler {
+
+        @Override
+        public void onControlMessage(ServerConnection connection, StateDeviceMessage msg) {
+            long since;
+            try {
+                since = Long.parseLong(msg.getName().trim());
+            } catch (NumberFormatException e) {
+                since = -1;
+            }
+            Scheduler.cancel(snapshotKey(connection));
+
+            StateChangeLog.Changes changes = Server.getChangeLog().changesSince(since);
+            if (changes == null) {
+                log.info("Cannot resume " + connection + " from version " + since + ", sending snapshot");
+                sendSnapshot(connection);
+            } else {
+                log.info("Resuming " + connection + " from version " + since + " with "
+                        + changes.getMessages().size() + " changes");
+                send(connection, changes.getMessages(), changes.getVersion());
+            }
+        }
+    }
+
+    /**
+     * The HelloHandler answers the "alfred:hello" control message with the
+     * current version. By default the snapshot is sent as soon as the client
+     * connects, before its hello, so the version could not be sent with the
+     * snapshot. Without it a new client would have no version to resume from
+     * until a device changes. Every change since the snapshot was sent to the
+     * client too, so the current version covers everything it has received.
+     * If the snapshot is still waiting for the grace period, it carries the
+     * version instead
+     *
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    public class HelloHandler implements ControlHandler {
+
+        @Override
+        public void onControlMessage(ServerConnection connection, StateDeviceMessage msg) {
+            if (Scheduler.isPending(snapshotKey(connection))) {
+                return;
+            }
+            send(connection, Collections.<StateDeviceMessage>emptyList(), Server.getChangeLog().getVersion());
+        }
+    }
 }
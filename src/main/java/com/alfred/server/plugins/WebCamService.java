@@ -0,0 +1,227 @@
+package com.alfred.server.plugins;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.metrics.Counter;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
+import com.github.sarxos.webcam.Webcam;
+import com.github.sarxos.webcam.ds.v4l4j.V4l4jDriver;
+
+/**
+ * Long-lived capture service for the webcam connected to the Pi. Opening the
+ * V4L device takes far longer than grabbing a frame, so instead of opening
+ * and closing the camera for every picture the service opens it once and
+ * keeps a background thread grabbing frames into a single-frame buffer. A
+ * doorbell event then only has to pick up the freshest frame.
+ *
+ * If the camera fails (unplugged, driver error, etc) the capture thread
+ * closes it and keeps trying to reopen it, waiting a little longer after
+ * each failed attempt.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class WebCamService implements Runnable {
+
+    // Custom resolution
+    private static final Dimension[] RESOLUTIONS = new Dimension[] {
+        new Dimension(640, 360),
+        new Dimension(1280, 720)
+    };
+    private static final long FRAME_INTERVAL = 100;
+    private static final long MAX_FRAME_AGE = 1000;
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 30000;
+    private static final long STOP_TIMEOUT = 10000;
+
+    private static WebCamService instance = null;
+
+    private final Object frameLock = new Object();
+    private CapturedFrame latest = null;
+    private volatile boolean running = false;
+    private Thread thread = null;
+    private Webcam webcam = null;
+    private static final Histogram openTime = Metrics.histogram("alfred_webcam_open_seconds",
+            "Time to open the webcam");
+    private static final Counter errors = Metrics.counter("alfred_webcam_errors_total",
+            "Webcam failures that closed and reopened the camera");
+    private static final Logger log = LoggerFactory.getLogger(WebCamService.class);
+
+    private WebCamService() { }
+
+    /**
+     * Method to get the capture service. The service is created and its
+     * capture thread started on the first call
+     *
+     * @return The webcam capture service
+     */
+    public static synchronized WebCamService getInstance() {
+        if (instance == null) {
+            instance = new WebCamService();
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Method to start the capture thread. The V4L4J driver is loaded on the
+     * capture thread too, so starting the service costs the caller nothing
+     */
+    private void start() {
+        running = true;
+        thread = new Thread(this, "alfred-webcam");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Method to stop the capture service and release the camera. The method
+     * waits for the capture thread to close the camera, and getInstance
+     * waits for the method, so a new service never opens the camera while
+     * the old one still has it
+     */
+    public static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        WebCamService service = instance;
+        instance = null;
+        service.running = false;
+        // wake the thread from its frame or retry sleep
+        service.thread.interrupt();
+        try {
+            service.thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (service.thread.isAlive()) {
+            log.error("Webcam capture thread did not stop within " + STOP_TIMEOUT + " ms");
+        }
+    }
+
+    /**
+     * Method to get the freshest frame from the camera. If the buffered frame
+     * is older than a second (the camera is reopening or has not delivered a
+     * frame yet) the method waits up to the timeout for a new one
+     *
+     * @param timeoutMillis
+     *            How long to wait for a fresh frame
+     * @return The latest image, or null if the camera has not produced a
+     *         fresh one in time. An old frame is never returned, it would
+     *         show an earlier visitor
+     */
+    public BufferedImage getLatestImage(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (frameLock) {
+            CapturedFrame frame = latest;
+            while (!isFresh(frame) && System.currentTimeMillis() < deadline) {
+                try {
+                    frameLock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                frame = latest;
+            }
+            return isFresh(frame) ? frame.image : null;
+        }
+    }
+
+    @Override
+    public void run() {
+        Webcam.setDriver(new V4l4jDriver()); // this is important
+        long retryDelay = MIN_RETRY_DELAY;
+        while (running) {
+            try {
+                if (webcam == null || !webcam.isOpen()) {
+                    open();
+                    retryDelay = MIN_RETRY_DELAY;
+                }
+                BufferedImage image = webcam.getImage();
+                if (image == null) {
+                    throw new IllegalStateException("Webcam returned no image");
+                }
+                synchronized (frameLock) {
+                    latest = new CapturedFrame(image, System.currentTimeMillis());
+                    frameLock.notifyAll();
+                }
+                Thread.sleep(FRAME_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                if (!running) {
+                    // interrupted by shutdown
+                    break;
+                }
+                log.error("Webcam capture failed, reopening in " + retryDelay + " ms", e);
+                errors.increment();
+                close();
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            }
+        }
+        close();
+    }
+
+    /**
+     * Helper method to open the default webcam (video0)
+     */
+    private void open() {
+        // TODO make webcam device a SAP
+        log.info("Opening webcam");
+        long start = System.nanoTime();
+        webcam = Webcam.getDefault();
+        if (webcam == null) {
+            throw new IllegalStateException("No webcam found");
+        }
+        webcam.setCustomViewSizes(RESOLUTIONS);
+        webcam.setViewSize(RESOLUTIONS[0]);
+        if (!webcam.open()) {
+            throw new IllegalStateException("Unable to open webcam");
+        }
+        openTime.recordSince(start);
+        log.info("Webcam open");
+    }
+
+    /**
+     * Helper method to close the webcam, ignoring errors
+     */
+    private void close() {
+        if (webcam != null) {
+            try {
+                webcam.close();
+            } catch (Exception e) {
+                log.error("Closing webcam failed", e);
+            }
+            webcam = null;
+        }
+    }
+
+    private static boolean isFresh(CapturedFrame frame) {
+        return frame != null && System.currentTimeMillis() - frame.time <= MAX_FRAME_AGE;
+    }
+
+    /**
+     * A frame and the time it was captured
+     */
+    private static class CapturedFrame {
+        final BufferedImage image;
+        final long time;
+
+        CapturedFrame(BufferedImage image, long time) {
+            this.image = image;
+            this.time = time;
+        }
+    }
+}
@@ -1,21 +1,26 @@
 package com.alfred.server.plugins;
 
-import java.awt.Dimension;
 import java.awt.image.RenderedImage;
 
-import com.github.sarxos.webcam.Webcam;
-import com.github.sarxos.webcam.ds.v4l4j.V4l4jDriver;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
 
 /**
- * Thread to handle taking a picture with a Webcam connected to the Pi. When the
- * webcam is finished capturing an image it calls the onComplete method for the
- * registered WebCamCallback with a reference to the captured image
+ * Thread to handle taking a picture with a Webcam connected to the Pi. The
+ * picture is the freshest frame from the WebCamService, which keeps the
+ * camera open between pictures. When the image is ready it calls the
+ * onComplete method for the registered WebCamCallback with a reference to
+ * the captured image
  * 
  * @author Kevin Kanzelmeyer
  *
  */
 public class WebCameraThread implements Runnable {
     
+    private static final long CAPTURE_TIMEOUT = 5000;
+    private static final Histogram captureTime = Metrics.histogram("alfred_webcam_capture_seconds",
+            "Time to get a fresh frame from the webcam for a doorbell event");
+
     private RenderedImage image;
     private WebCamCallback _handler;
     
@@ -32,7 +37,6 @@ public class WebCameraThread implements Runnable {
      */
     public WebCameraThread(WebCamCallback handler) {
         _handler = handler;
-        Webcam.setDriver(new V4l4jDriver()); // this is important
     }
 
     @Override
@@ -46,24 +50,13 @@ public class WebCameraThread implements Runnable {
     
     
     /**
-     * Take Picture method uses com.github.sarxos.webcam library to take a
-     * picture using the default webcam (video0). Custom dimensions can be
-     * defined in the myResolution array. When the webcam has completed taking a
-     * picture the image is saved to the specified directory
+     * Take Picture method gets the latest frame from the webcam capture
+     * service. If the camera is still opening it waits a few seconds for the
+     * first frame
      */
     public void takePicture() {
-           // Custom resolution
-           Dimension[] myResolution = 
-                   new Dimension[] { 
-                       new Dimension(640, 360), 
-                       new Dimension(1280, 720) 
-                   };
-           // TODO make webcam device a SAP
-           Webcam webcam = Webcam.getDefault();
-           webcam.setCustomViewSizes(myResolution);
-           webcam.setViewSize(myResolution[0]);
-           webcam.open();
-           image = webcam.getImage();
-           webcam.close();
-       }
+        long start = System.nanoTime();
+        image = WebCamService.getInstance().getLatestImage(CAPTURE_TIMEOUT);
+        captureTime.recordSince(start);
+    }
 }
@@ -1,13 +1,18 @@
 package com.alfred.server.server;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.google.protobuf.CodedOutputStream;
 
 /**
  * This class is a thread that listens for message traffic on a given connection.
@@ -21,24 +26,46 @@ import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
  * is expecting a StateDeviceMessage message type. When a message is received it
  * notifies the Server class using the static method "messageReceived"
  * 
+ * Messages to the client are written by a separate writer thread that drains
+ * the connection's outbound queue.
+ * 
  * @author Kevin Kanzelmeyer
  *
  */
-public class ClientConnection implements Runnable {
+public class ClientConnection extends ServerConnection implements Runnable {
 
     private Socket _socket;
     private static final Logger log = LoggerFactory.getLogger(ClientConnection.class);
 
     public ClientConnection(Socket socket) {
+        super(socket);
         _socket = socket;
     }
 
+    @Override
+    protected void onFrameQueued() {
+        // the writer thread is waiting on the queue
+    }
+
+    @Override
+    public void close() {
+        getOutboundQueue().close();
+        try {
+            _socket.close();
+        } catch (IOException e) {
+            log.error("Closing socket failed", e);
+        }
+    }
+
     @Override
     public void run() {
         
         log.info("Starting thread to listen for incoming client messages");
         if (_socket.isConnected()) {
-            Server.addServerConnection(_socket);
+            Thread writer = new Thread(new ConnectionWriter(), "alfred-writer-" + getId());
+            writer.setDaemon(true);
+            writer.start();
+            Server.addServerConnection(this);
 
             InputStream stream;
             StateDeviceMessage msg;
@@ -52,24 +79,76 @@ public class ClientConnection implements Runnable {
                         if(msg == null) {
                             break;
                         }
+                        int size = msg.getSerializedSize();
+                        addBytesReceived(CodedOutputStream.computeRawVarint32Size(size) + size);
 
                         // notify handlers
-                        Server.messageReceived(msg);
+                        try {
+                            Server.messageReceived(this, msg);
+                        } catch (RuntimeException e) {
+                            // a failing handler must not end the connection
+                            log.error("Handling message " + msg.getId() + " from " + this + " failed", e);
+                        }
 
                     } else {
                         log.info("Socket not connected");
                         break;
                     }
                 } catch (IOException e) {
-                    log.info("Lost Client connection : " + _socket.hashCode(), e);
+                    log.info("Lost Client connection : " + this, e);
                     break;
                 }
             }
-            Server.removeServerConnection(_socket);
+            Server.removeServerConnection(this);
+            close();
             log.info("Dropping connection. " + Server.getConnectionCount() + " connections remaining.");
         } else {
             log.info("Socket not connected");
         }
     }
 
-}
+    /**
+     * Writer thread for this connection. It drains the outbound queue so the
+     * threads that broadcast messages never block on this client's socket.
+     * Frames waiting in the queue are written through a buffer and flushed
+     * together
+     * 
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    private class ConnectionWriter implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                OutputStream out = new BufferedOutputStream(_socket.getOutputStream(), MAX_BATCH_BYTES);
+                List<Frame> batch = new ArrayList<>(MAX_BATCH_FRAMES);
+                Frame frame;
+                while ((frame = getOutboundQueue().take()) != null) {
+                    if (getFlushWindow() > 0) {
+                        // let the rest of a burst join the batch
+                        Thread.sleep(getFlushWindow());
+                    }
+                    int size = fillBatch(frame, batch);
+                    long start = System.nanoTime();
+                    setWritePending(true);
+                    for (Frame next : batch) {
+                        next.writeTo(out);
+                    }
+                    out.flush();
+                    setWritePending(false);
+                    addWriteTime(start);
+                    addBytesSent(size);
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                log.error("Writing to socket failed", e);
+                // closing the socket also ends the reader loop
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.alfred.server.server;
+
+/**
+ * Common interface of the engines that accept client connections. The
+ * engine runs on its own thread until it is shut down
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface ConnectionEngine extends Runnable {
+
+    /**
+     * Method to stop accepting new connections. Connections that are already
+     * registered with the server stay open so their outbound queues can be
+     * drained
+     */
+    public void shutdown();
+}
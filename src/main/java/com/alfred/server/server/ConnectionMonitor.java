@@ -0,0 +1,182 @@
+package com.alfred.server.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.metrics.Counter;
+import com.alfred.server.metrics.Metrics;
+import com.alfred.server.utils.Config;
+import com.alfred.server.utils.Scheduler;
+
+/**
+ * Finds dead clients and closes their connections. Without it a phone that
+ * left the network keeps its connection, reader thread and queue until the
+ * operating system gives up on the socket, which can take hours.
+ *
+ * The monitor checks every connection periodically on the shared Scheduler:
+ * <ul>
+ * <li><b>Heartbeat:</b> clients that understand control messages and have
+ * been silent for the heartbeat interval are sent a ping, and are closed if
+ * they stay silent past the idle timeout</li>
+ * <li><b>Write stall:</b> any client whose writer has had bytes waiting
+ * without the client accepting any for the write timeout is closed</li>
+ * </ul>
+ * Older clients cannot answer a ping, so they are only found by the write
+ * stall check and by TCP keepalive (see ServerConnection.configureSocket).
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class ConnectionMonitor implements Runnable {
+
+    public static final long DEFAULT_HEARTBEAT = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 90000;
+    public static final long DEFAULT_WRITE_TIMEOUT = 30000;
+
+    private static final String TASK_KEY = "connection-monitor";
+    private static final long MIN_INTERVAL = 1000;
+
+    private final long heartbeat;
+    private final long idleTimeout;
+    private final long writeTimeout;
+    private volatile boolean running = false;
+    private static final Counter reaped = Metrics.counter("alfred_client_reaped_total",
+            "Clients closed because they stopped answering or stopped reading");
+    private static final Counter pings = Metrics.counter("alfred_heartbeats_sent_total",
+            "Heartbeats sent to silent clients");
+    private static final Logger log = LoggerFactory.getLogger(ConnectionMonitor.class);
+
+    /**
+     * Constructor order is heartbeat interval, idle timeout, write timeout.
+     * A value of zero turns that check off
+     *
+     * @param heartbeat
+     *            The silence in milliseconds after which a client is pinged
+     * @param idleTimeout
+     *            The silence in milliseconds after which a client that
+     *            understands control messages is closed
+     * @param writeTimeout
+     *            The time in milliseconds a pending write may go without
+     *            progress before the client is closed
+     */
+    public ConnectionMonitor(long heartbeat, long idleTimeout, long writeTimeout) {
+        this.heartbeat = Math.max(0, heartbeat);
+        this.idleTimeout = Math.max(0, idleTimeout);
+        this.writeTimeout = Math.max(0, writeTimeout);
+    }
+
+    /**
+     * Method to create a monitor configured from the server properties
+     *
+     * @return A new connection monitor
+     */
+    public static ConnectionMonitor create() {
+        return new ConnectionMonitor(
+                Server.getLongProperty(Config.HEARTBEAT, DEFAULT_HEARTBEAT),
+                Server.getLongProperty(Config.IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT),
+                Server.getLongProperty(Config.WRITE_TIMEOUT, DEFAULT_WRITE_TIMEOUT));
+    }
+
+    /**
+     * Method to start the periodic checks. Has no effect if every check is
+     * turned off
+     */
+    public synchronized void start() {
+        if (getInterval() > 0) {
+            running = true;
+            Scheduler.schedule(TASK_KEY, this, getInterval(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Method to stop the periodic checks
+     */
+    public synchronized void stop() {
+        running = false;
+        Scheduler.cancel(TASK_KEY);
+    }
+
+    @Override
+    public void run() {
+        try {
+            check(System.currentTimeMillis());
+        } catch (Exception e) {
+            log.error("Checking connections failed", e);
+        }
+        synchronized (this) {
+            if (running) {
+                Scheduler.schedule(TASK_KEY, this, getInterval(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Method to check every connection once, pinging silent clients and
+     * closing dead ones
+     *
+     * @param now The current time in milliseconds
+     * @return The number of connections closed
+     */
+    public int check(long now) {
+        int closed = 0;
+        Frame ping = null;
+        for (ServerConnection connection : Server.getServerConnections()) {
+            long stall = connection.getWriteStallTime(now);
+            if (writeTimeout > 0 && stall >= writeTimeout) {
+                reap(connection, "no write progress for " + stall + " ms");
+                closed++;
+                continue;
+            }
+            if (!connection.isControlEnabled()) {
+                continue;
+            }
+            long silence = now - connection.getLastReceiveTime();
+            if (idleTimeout > 0 && silence >= idleTimeout) {
+                reap(connection, "silent for " + silence + " ms");
+                closed++;
+            } else if (heartbeat > 0 && silence >= heartbeat && now - connection.getLastPingTime() >= heartbeat) {
+                try {
+                    if (ping == null) {
+                        ping = Frame.encode(ControlMessages.create(ControlMessages.PING, String.valueOf(now)));
+                    }
+                    connection.send(ping);
+                    connection.setLastPingTime(now);
+                    pings.increment();
+                } catch (IOException e) {
+                    reap(connection, "heartbeat could not be queued");
+                    closed++;
+                }
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Method to get the time between checks: half the shortest configured
+     * time, so a dead client is closed at most half a period late
+     *
+     * @return The interval in milliseconds, 0 if every check is turned off
+     */
+    public long getInterval() {
+        long shortest = Long.MAX_VALUE;
+        for (long time : new long[] { heartbeat, idleTimeout, writeTimeout }) {
+            if (time > 0) {
+                shortest = Math.min(shortest, time);
+            }
+        }
+        return shortest == Long.MAX_VALUE ? 0 : Math.max(MIN_INTERVAL, shortest / 2);
+    }
+
+    /**
+     * Helper method to close a dead connection
+     */
+    private void reap(ServerConnection connection, String reason) {
+        log.info("Closing " + connection + ": " + reason);
+        reaped.increment();
+        Server.removeServerConnection(connection);
+        connection.close();
+    }
+}
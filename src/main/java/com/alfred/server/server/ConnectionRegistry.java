@@ -0,0 +1,111 @@
+package com.alfred.server.server;
+
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registry of the client connections known to the server. Connections are
+ * added and removed by the accept, reader and writer threads while other
+ * threads broadcast to them, so the registry keeps an immutable snapshot of
+ * the connections and replaces it atomically on every change.
+ *
+ * Iterating never takes a lock and never sees a partial update: a broadcast
+ * works on the snapshot that was current when it started, even if
+ * connections are removed while it is sending.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class ConnectionRegistry {
+
+    private static final ServerConnection[] EMPTY = new ServerConnection[0];
+
+    private final AtomicReference<ServerConnection[]> connections = new AtomicReference<>(EMPTY);
+
+    /**
+     * Method to register a connection
+     *
+     * @param connection A reference to the client connection
+     * @return True if the connection was added, false if it was already
+     *         registered
+     */
+    public boolean add(ServerConnection connection) {
+        while (true) {
+            ServerConnection[] current = connections.get();
+            for (ServerConnection c : current) {
+                if (c == connection) {
+                    return false;
+                }
+            }
+            ServerConnection[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = connection;
+            if (connections.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Method to unregister a connection
+     *
+     * @param connection A reference to the client connection
+     * @return True if the connection was removed, false if it was not
+     *         registered
+     */
+    public boolean remove(ServerConnection connection) {
+        while (true) {
+            ServerConnection[] current = connections.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == connection) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            ServerConnection[] next = new ServerConnection[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            if (connections.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Method to find the registered connection for a given socket
+     *
+     * @param socket A reference to the socket of the connection
+     * @return The connection, or null if the socket is not registered
+     */
+    public ServerConnection get(Socket socket) {
+        for (ServerConnection connection : connections.get()) {
+            if (connection.getSocket() == socket) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to get a consistent snapshot of the registered connections. The
+     * snapshot does not change when connections are added or removed later
+     *
+     * @return An unmodifiable list of the connections
+     */
+    public List<ServerConnection> snapshot() {
+        return Collections.unmodifiableList(Arrays.asList(connections.get()));
+    }
+
+    /**
+     * @return The number of registered connections
+     */
+    public int size() {
+        return connections.get().length;
+    }
+}
@@ -0,0 +1,23 @@
+package com.alfred.server.server;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+
+/**
+ * Handler for control messages sent by clients. Unlike a NetworkHandler it
+ * is given the connection the message came from, so it can reply to that
+ * client only.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface ControlHandler {
+
+    /**
+     * Called when a client sends a control message with the command the
+     * handler is registered for
+     *
+     * @param connection The connection the message was received on
+     * @param msg The control message
+     */
+    public void onControlMessage(ServerConnection connection, StateDeviceMessage msg);
+}
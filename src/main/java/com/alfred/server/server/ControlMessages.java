@@ -0,0 +1,117 @@
+package com.alfred.server.server;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.google.protobuf.ByteString;
+
+/**
+ * Control messages are StateDeviceMessages that carry a request or a reply
+ * between the server and a client instead of a device state. They reuse the
+ * existing message so the protocol does not change:
+ * <ul>
+ * <li><b>id:</b> the command, always starting with "alfred:"</li>
+ * <li><b>name:</b> the argument of the command (an event id, etc)</li>
+ * <li><b>data:</b> the payload, if any</li>
+ * </ul>
+ * The type and state are set to fixed values and carry no meaning.
+ *
+ * A client opts in to control messages by sending one (usually "alfred:hello"
+ * right after connecting). The server only sends control messages to clients
+ * that have opted in, so older clients never see them.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class ControlMessages {
+
+    public static final String PREFIX = "alfred:";
+
+    /** Sent by a client to opt in to control messages */
+    public static final String HELLO = PREFIX + "hello";
+
+    /** Announces a doorbell event, the name is the event id */
+    public static final String EVENT = PREFIX + "event";
+
+    /**
+     * Requests the full resolution image of an event (name is the event id),
+     * and carries the image in the reply. A reply without data means the
+     * image is no longer available
+     */
+    public static final String IMAGE = PREFIX + "image";
+
+    /**
+     * Sent after each state change, and after a snapshot or resume, with the
+     * version of the latest change as the name. Clients keep the last version
+     * they saw to resume with
+     */
+    public static final String VERSION = PREFIX + "version";
+
+    /**
+     * Sent by a reconnecting client with the last version it saw as the name.
+     * The server replies with the changes since then, or with a snapshot of
+     * every device if it no longer has them, followed by a version message
+     */
+    public static final String RESUME = PREFIX + "resume";
+
+    /**
+     * A slice of a large message. The name is "transfer:index:count" and the
+     * data is a slice of the serialized message. The client joins the slices
+     * of a transfer in index order and parses the result as a
+     * StateDeviceMessage. Other messages may arrive between the chunks of a
+     * transfer, and a transfer with a missing chunk should be discarded
+     */
+    public static final String CHUNK = PREFIX + "chunk";
+
+    /**
+     * Heartbeat. The server sends a ping to a client that has been silent
+     * for the heartbeat interval, and closes the connection if the client
+     * stays silent until the idle timeout. Clients answer with a pong with
+     * the same name, and may ping the server too
+     */
+    public static final String PING = PREFIX + "ping";
+
+    /** The answer to a ping, the name is the name of the ping */
+    public static final String PONG = PREFIX + "pong";
+
+    private ControlMessages() { }
+
+    /**
+     * @param msg A reference to a StateDeviceMessage
+     * @return True if the message is a control message
+     */
+    public static boolean isControl(StateDeviceMessage msg) {
+        return msg.getId().startsWith(PREFIX);
+    }
+
+    /**
+     * Method to create a control message without a payload
+     *
+     * @param command The command, one of the constants of this class
+     * @param argument The argument of the command
+     * @return The control message
+     */
+    public static StateDeviceMessage create(String command, String argument) {
+        return builder(command, argument).build();
+    }
+
+    /**
+     * Method to create a control message with a payload
+     *
+     * @param command The command, one of the constants of this class
+     * @param argument The argument of the command
+     * @param data The payload
+     * @return The control message
+     */
+    public static StateDeviceMessage create(String command, String argument, ByteString data) {
+        return builder(command, argument).setData(data).build();
+    }
+
+    private static StateDeviceMessage.Builder builder(String command, String argument) {
+        return StateDeviceMessage.newBuilder()
+                .setId(command)
+                .setName(argument)
+                .setType(Type.DOORBELL)
+                .setState(State.INACTIVE);
+    }
+}
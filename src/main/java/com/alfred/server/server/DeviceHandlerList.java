@@ -0,0 +1,75 @@
+package com.alfred.server.server;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.handlers.StateDeviceHandler;
+
+/**
+ * The state device handlers of the server. It is registered with the
+ * StateDeviceManager once, and passes every callback on to the handlers added
+ * here. The StateDeviceManager does not guard its own handler list, so adding
+ * handlers to it while plugins are activated in parallel, or while a device
+ * update is being delivered, is not safe. This list can be changed from any
+ * thread at any time.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class DeviceHandlerList implements StateDeviceHandler {
+
+    private final CopyOnWriteArrayList<StateDeviceHandler> handlers = new CopyOnWriteArrayList<>();
+    private static final Logger log = LoggerFactory.getLogger(DeviceHandlerList.class);
+
+    /**
+     * @param handler A reference to the State Device Handler
+     * @return True if the handler was not already in the list
+     */
+    public boolean add(StateDeviceHandler handler) {
+        return handlers.addIfAbsent(handler);
+    }
+
+    /**
+     * @param handler A reference to the State Device Handler
+     * @return True if the handler was in the list
+     */
+    public boolean remove(StateDeviceHandler handler) {
+        return handlers.remove(handler);
+    }
+
+    @Override
+    public void onAddDevice(StateDevice device) {
+        for (StateDeviceHandler handler : handlers) {
+            try {
+                handler.onAddDevice(device);
+            } catch (RuntimeException e) {
+                log.error("State handler " + handler.getClass() + " failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void onUpdateDevice(StateDevice device) {
+        for (StateDeviceHandler handler : handlers) {
+            try {
+                handler.onUpdateDevice(device);
+            } catch (RuntimeException e) {
+                log.error("State handler " + handler.getClass() + " failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void onRemoveDevice(StateDevice device) {
+        for (StateDeviceHandler handler : handlers) {
+            try {
+                handler.onRemoveDevice(device);
+            } catch (RuntimeException e) {
+                log.error("State handler " + handler.getClass() + " failed", e);
+            }
+        }
+    }
+}
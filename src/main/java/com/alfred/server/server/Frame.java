@@ -0,0 +1,239 @@
+package com.alfred.server.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.server.utils.Config;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * An encoded, length delimited message ready to be written to clients. The
+ * bytes are the same as those written by "writeDelimitedTo", but a frame is
+ * encoded only once and can then be queued for any number of connections.
+ * The bytes are never modified after encoding, and connections only get read
+ * only views of them, so one frame is safely shared by every client of a
+ * broadcast.
+ *
+ * Large messages can instead be split into chunk frames (see
+ * ControlMessages.CHUNK) for clients that understand them. Chunk frames are
+ * "bulk" frames: the outbound queue sends them after any state update that
+ * is waiting, so a small update is not stuck behind a whole image.
+ *
+ * A frame also remembers what it carries, so a queue can conflate it (see
+ * OutboundQueue): the device id of a state update, and if it carries a
+ * picture.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class Frame {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16384;
+
+    private static final AtomicLong nextTransfer = new AtomicLong(1);
+
+    private final byte[] bytes;
+    private final boolean bulk;
+    private final String deviceId;
+    private final String conflationKey;
+    private final boolean image;
+    private final long transfer;
+
+    private Frame(byte[] bytes, boolean bulk) {
+        this(bytes, bulk, null, null, false, 0);
+    }
+
+    private Frame(byte[] bytes, boolean bulk, String deviceId, String conflationKey, boolean image,
+            long transfer) {
+        this.bytes = bytes;
+        this.bulk = bulk;
+        this.deviceId = deviceId;
+        this.conflationKey = conflationKey;
+        this.image = image;
+        this.transfer = transfer;
+    }
+
+    /**
+     * Method to encode a message as a length delimited frame. The frame is
+     * allocated at its exact size so the encoded bytes are never copied
+     *
+     * @param msg A reference to a StateDeviceMessage
+     * @return The encoded frame
+     * @throws IOException if the message could not be encoded
+     */
+    public static Frame encode(StateDeviceMessage msg) throws IOException {
+        if (!ControlMessages.isControl(msg)) {
+            return new Frame(delimited(msg), false, msg.getId(), msg.getId(), msg.hasData(), 0);
+        }
+        // only the latest version matters to a client
+        String key = ControlMessages.VERSION.equals(msg.getId()) ? msg.getId() : null;
+        return new Frame(delimited(msg), false, null, key, false, 0);
+    }
+
+    /**
+     * Method to encode several messages into one frame. The frame holds the
+     * length delimited messages one after another, so the client reads them
+     * exactly as if they had been written separately, but they are queued and
+     * written as one
+     *
+     * @param msgs The messages, in order
+     * @return The encoded frame
+     * @throws IOException if a message could not be encoded
+     */
+    public static Frame encodeAll(List<StateDeviceMessage> msgs) throws IOException {
+        int size = 0;
+        for (StateDeviceMessage msg : msgs) {
+            int length = msg.getSerializedSize();
+            size += CodedOutputStream.computeRawVarint32Size(length) + length;
+        }
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (StateDeviceMessage msg : msgs) {
+            out.writeRawVarint32(msg.getSerializedSize());
+            msg.writeTo(out);
+        }
+        out.checkNoSpaceLeft();
+        return new Frame(bytes, false);
+    }
+
+    /**
+     * Method to split a message into chunk frames. Each chunk carries a slice
+     * of the serialized message, at most chunkSize bytes, and is named
+     * "transfer:index:count" so the client can join the slices of a transfer
+     *
+     * @param msg A reference to a StateDeviceMessage
+     * @param chunkSize The maximum number of message bytes per chunk
+     * @return The encoded chunk frames, in order
+     * @throws IOException if the message could not be encoded
+     */
+    public static List<Frame> encodeChunks(StateDeviceMessage msg, int chunkSize) throws IOException {
+        ByteString bytes = msg.toByteString();
+        int count = Math.max(1, (bytes.size() + chunkSize - 1) / chunkSize);
+        long transfer = nextTransfer.getAndIncrement();
+        List<Frame> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int start = i * chunkSize;
+            ByteString slice = bytes.substring(start, Math.min(start + chunkSize, bytes.size()));
+            StateDeviceMessage chunk = ControlMessages.create(ControlMessages.CHUNK,
+                    transfer + ":" + i + ":" + count, slice);
+            chunks.add(new Frame(delimited(chunk), true, msg.getId(), null, msg.hasData(), transfer));
+        }
+        return chunks;
+    }
+
+    /**
+     * Method to get a copy of this frame that is sent after the given chunks.
+     * The copy waits in the bulk lane behind them and belongs to their
+     * transfer, so it is never sent before the last chunk and is dropped if
+     * the chunks are. Used for the version of a chunked message
+     *
+     * @param chunks The chunk frames of a message, from encodeChunks
+     * @return The frame to queue after the chunks
+     */
+    public Frame afterChunks(List<Frame> chunks) {
+        return new Frame(bytes, true, deviceId, null, image, chunks.get(chunks.size() - 1).getTransfer());
+    }
+
+    /**
+     * Method to get the configured chunk size. Messages larger than this are
+     * sent in chunks to the clients that understand them
+     *
+     * @return The chunk size in bytes
+     */
+    public static int getChunkSize() {
+        return (int) Math.max(1, Server.getLongProperty(Config.CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+    }
+
+    /**
+     * Helper method to encode a message with its length prefix. The array is
+     * allocated at its exact size so the encoded bytes are never copied
+     */
+    private static byte[] delimited(StateDeviceMessage msg) throws IOException {
+        int length = msg.getSerializedSize();
+        byte[] bytes = new byte[CodedOutputStream.computeRawVarint32Size(length) + length];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        out.writeRawVarint32(length);
+        msg.writeTo(out);
+        out.checkNoSpaceLeft();
+        return bytes;
+    }
+
+    /**
+     * @return The size of the frame in bytes, including the length prefix
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * @return True if this is a bulk frame (a chunk of a large message) that
+     *         may wait behind state updates
+     */
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * @return The transfer a chunk frame belongs to, shared by every chunk of
+     *         the same message, or 0 if the frame is not a chunk
+     */
+    public long getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * @return The id of the device whose state the frame carries (also set
+     *         on the chunks of a device message), or null for control
+     *         messages and frames of several messages
+     */
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Method to get the key under which a queue may replace this frame with a
+     * newer one: the device id of a state update, or the command of a version
+     * message. Chunks, snapshots and other control messages must all be
+     * delivered and have no key
+     *
+     * @return The conflation key, or null if the frame is never conflated
+     */
+    public String getConflationKey() {
+        return conflationKey;
+    }
+
+    /**
+     * @return True if the frame carries a picture (a doorbell event with an
+     *         image or thumbnail, or a chunk of one)
+     */
+    public boolean hasImage() {
+        return image;
+    }
+
+    /**
+     * Method to get a read only view of the frame. Each call returns a new
+     * view with its own position, so every connection can track how much of
+     * the frame it has written
+     *
+     * @return A read only buffer positioned at the start of the frame
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Method to write the whole frame to a stream
+     *
+     * @param out The stream to write to
+     * @throws IOException if the write fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+}
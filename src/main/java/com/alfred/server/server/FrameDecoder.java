@@ -0,0 +1,87 @@
+package com.alfred.server.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decoder for length delimited frames as written by the protobuf
+ * "writeDelimitedTo" method: a varint32 length prefix followed by the message
+ * bytes. The non-blocking engine receives these frames in arbitrary pieces, so
+ * the decoder only consumes complete frames and leaves any partial frame in
+ * the buffer for the next read.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class FrameDecoder {
+
+    private final int maxFrameSize;
+
+    /**
+     * @param maxFrameSize
+     *            The largest frame body in bytes that will be accepted
+     */
+    public FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Method to take all complete frames out of the input buffer. The buffer
+     * must be in read mode (flipped). On return the buffer position is at the
+     * start of the first incomplete frame
+     *
+     * @param in
+     *            The buffer holding the received bytes
+     * @param frames
+     *            The list the decoded frame bodies are added to
+     * @throws IOException
+     *             if the length prefix is malformed or exceeds the maximum
+     *             frame size
+     */
+    public void decode(ByteBuffer in, List<byte[]> frames) throws IOException {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int length = readVarint(in);
+            if (length < 0) {
+                // length prefix is not complete yet
+                in.position(start);
+                return;
+            }
+            if (length > maxFrameSize) {
+                throw new IOException("Frame of " + length + " bytes exceeds the maximum of " + maxFrameSize);
+            }
+            if (in.remaining() < length) {
+                in.position(start);
+                return;
+            }
+            byte[] frame = new byte[length];
+            in.get(frame);
+            frames.add(frame);
+        }
+    }
+
+    /**
+     * Helper method to read a varint32 from the buffer
+     *
+     * @return The value, or -1 if the buffer ends before the varint does
+     * @throws IOException if the varint is longer than five bytes
+     */
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            byte b = in.get();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (result < 0) {
+                    throw new IOException("Negative frame length");
+                }
+                return result;
+            }
+        }
+        throw new IOException("Malformed frame length");
+    }
+}
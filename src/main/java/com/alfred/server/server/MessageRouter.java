@@ -0,0 +1,141 @@
+package com.alfred.server.server;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.common.network.NetworkHandler;
+
+/**
+ * Routing table for incoming messages. Instead of offering every message to
+ * every NetworkHandler, handlers register for the messages they care about:
+ * <ul>
+ * <li><b>Device id:</b> messages for one device, which is what the device
+ * plugins need</li>
+ * <li><b>Type:</b> messages for every device of one type</li>
+ * <li><b>Wildcard:</b> every message, for handlers like the
+ * ServerConnectionPlugin</li>
+ * </ul>
+ * Routing a message is two hash lookups plus the wildcard handlers, so it
+ * does not get slower as more devices are added. A handler registered in more
+ * than one tier receives a matching message once per tier.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class MessageRouter {
+
+    private final ConcurrentMap<String, List<NetworkHandler>> byId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Type, List<NetworkHandler>> byType = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<NetworkHandler> wildcard = new CopyOnWriteArrayList<>();
+
+    /**
+     * Method to register a handler for every message
+     *
+     * @param handler A reference to the Network Handler
+     * @return True if the handler was not already registered as a wildcard
+     */
+    public boolean add(NetworkHandler handler) {
+        return wildcard.addIfAbsent(handler);
+    }
+
+    /**
+     * Method to register a handler for the messages of one device
+     *
+     * @param deviceId The id of the device
+     * @param handler A reference to the Network Handler
+     * @return True if the handler was not already registered for the device
+     */
+    public boolean add(String deviceId, NetworkHandler handler) {
+        return tier(byId, deviceId).addIfAbsent(handler);
+    }
+
+    /**
+     * Method to register a handler for the messages of every device of a type
+     *
+     * @param type The device type
+     * @param handler A reference to the Network Handler
+     * @return True if the handler was not already registered for the type
+     */
+    public boolean add(Type type, NetworkHandler handler) {
+        return tier(byType, type).addIfAbsent(handler);
+    }
+
+    /**
+     * Method to remove a handler from every tier it is registered in
+     *
+     * @param handler A reference to the Network Handler
+     * @return True if the handler was registered
+     */
+    public boolean remove(NetworkHandler handler) {
+        boolean removed = wildcard.remove(handler);
+        for (List<NetworkHandler> handlers : byId.values()) {
+            removed |= handlers.remove(handler);
+        }
+        for (List<NetworkHandler> handlers : byType.values()) {
+            removed |= handlers.remove(handler);
+        }
+        return removed;
+    }
+
+    /**
+     * Method to deliver a message to the handlers registered for its device
+     * id, for its type, and for every message
+     *
+     * @param msg A reference to a StateDeviceMessage
+     */
+    public void route(StateDeviceMessage msg) {
+        List<NetworkHandler> handlers = byId.get(msg.getId());
+        if (handlers != null) {
+            for (NetworkHandler handler : handlers) {
+                handler.onMessageReceived(msg);
+            }
+        }
+        handlers = byType.get(msg.getType());
+        if (handlers != null) {
+            for (NetworkHandler handler : handlers) {
+                handler.onMessageReceived(msg);
+            }
+        }
+        for (NetworkHandler handler : wildcard) {
+            handler.onMessageReceived(msg);
+        }
+    }
+
+    /**
+     * Method to get every registered handler once, regardless of tier. Used
+     * to notify all handlers of a new connection
+     *
+     * @return The registered handlers
+     */
+    public Set<NetworkHandler> getHandlers() {
+        Set<NetworkHandler> handlers = new LinkedHashSet<>(wildcard);
+        for (List<NetworkHandler> tier : byId.values()) {
+            handlers.addAll(tier);
+        }
+        for (List<NetworkHandler> tier : byType.values()) {
+            handlers.addAll(tier);
+        }
+        return handlers;
+    }
+
+    /**
+     * Helper method to get or create the handler list for a routing key
+     */
+    private static <K> CopyOnWriteArrayList<NetworkHandler> tier(ConcurrentMap<K, List<NetworkHandler>> map, K key) {
+        List<NetworkHandler> handlers = map.get(key);
+        if (handlers == null) {
+            List<NetworkHandler> created = new CopyOnWriteArrayList<>();
+            handlers = map.putIfAbsent(key, created);
+            if (handlers == null) {
+                handlers = created;
+            }
+        }
+        return (CopyOnWriteArrayList<NetworkHandler>) handlers;
+    }
+}
@@ -4,11 +4,14 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.UnknownHostException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.alfred.server.utils.StartupTimer;
+
 /**
  * This thread runs a "while" loop listening for incoming connections When a new
  * connection is initiated it starts a new ClientConnection thread to handle
@@ -17,11 +20,12 @@ import org.slf4j.LoggerFactory;
  * @author Kevin Kanzelmeyer
  *
  */
-public class NewConnectionThread implements Runnable {
+public class NewConnectionThread implements ConnectionEngine {
 
     private String hostAddress;
     private String hostPort;
-    private ServerSocket serverSocket;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running = true;
     private static final Logger log = LoggerFactory.getLogger(NewConnectionThread.class);
 
     public NewConnectionThread(String hostAddress, String hostPort) {
@@ -37,10 +41,16 @@ public class NewConnectionThread implements Runnable {
         try {
             InetAddress host = InetAddress.getByName(hostAddress);
             serverSocket = new ServerSocket(Integer.valueOf(hostPort), 10, host);
+            StartupTimer.ready();
             
-            while (true) {
+            while (running) {
                 Socket connection = serverSocket.accept();
                 log.info("New connection received");
+                try {
+                    ServerConnection.configureSocket(connection);
+                } catch (SocketException e) {
+                    log.error("Setting socket options failed", e);
+                }
                 ClientConnection clientConnection = new ClientConnection(
                         connection);
                 new Thread(clientConnection).start();
@@ -50,9 +60,23 @@ public class NewConnectionThread implements Runnable {
         } catch (NumberFormatException e) {
             log.error("Number format exception", e);
         } catch (IOException e) {
-            log.error("Socket connection failed", e);
+            if (running) {
+                log.error("Socket connection failed", e);
+            }
         }
+        log.info("Stopped listening for incoming client connections");
+    }
 
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            log.error("Closing server socket failed", e);
+        }
     }
 
 }
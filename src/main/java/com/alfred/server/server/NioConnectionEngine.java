@@ -0,0 +1,452 @@
+package com.alfred.server.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.server.utils.Scheduler;
+import com.alfred.server.utils.StartupTimer;
+
+/**
+ * Non-blocking alternative to the NewConnectionThread. Instead of starting a
+ * thread per client, this engine accepts connections on a single
+ * ServerSocketChannel and serves the reads and writes of every client from a
+ * small, fixed number of event loop threads.
+ *
+ * The engine is selected with the "alfred.network.engine=nio" property. Like
+ * the blocking engine it registers each client with the server (which
+ * notifies the NetworkHandlers) and passes every received message to
+ * Server.messageReceived
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private String hostAddress;
+    private String hostPort;
+    private final int ioThreads;
+    private volatile EventLoop[] loops = new EventLoop[0];
+    private int nextLoop = 0;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile Selector acceptSelector;
+    private volatile boolean running = true;
+    private static final Logger log = LoggerFactory.getLogger(NioConnectionEngine.class);
+
+    /**
+     * Constructor order is host address, host port, number of IO threads
+     *
+     * @param hostAddress
+     *            The address to listen on
+     * @param hostPort
+     *            The port to listen on
+     * @param ioThreads
+     *            The number of event loop threads serving client traffic
+     */
+    public NioConnectionEngine(String hostAddress, String hostPort, int ioThreads) {
+        this.hostAddress = hostAddress;
+        this.hostPort = hostPort;
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    @Override
+    public void run() {
+
+        log.info("Starting non-blocking engine with " + ioThreads + " IO thread(s)");
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector acceptSelector = Selector.open()) {
+
+            this.acceptSelector = acceptSelector;
+            this.serverChannel = serverChannel;
+            if (!running) {
+                return;
+            }
+
+            InetAddress host = InetAddress.getByName(hostAddress);
+            serverChannel.bind(new InetSocketAddress(host, Integer.valueOf(hostPort)), 10);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            EventLoop[] loops = new EventLoop[ioThreads];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread thread = new Thread(loops[i], "alfred-nio-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            this.loops = loops;
+            StartupTimer.ready();
+
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    log.info("New connection received");
+                    channel.configureBlocking(false);
+                    try {
+                        ServerConnection.configureSocket(channel.socket());
+                    } catch (SocketException e) {
+                        log.error("Setting socket options failed", e);
+                    }
+                    loops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % loops.length;
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.error("Number format exception", e);
+        } catch (IOException e) {
+            if (running) {
+                log.error("Socket connection failed", e);
+            }
+        }
+        // the loops may have started after shutdown looked for them
+        wakeLoops();
+        log.info("Stopped listening for incoming client connections");
+    }
+
+    /**
+     * Method to stop the engine. The accept channel is closed, and every
+     * event loop closes the connections it still serves and its selector,
+     * then its thread ends
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+                acceptSelector.wakeup();
+            }
+        } catch (IOException e) {
+            log.error("Closing server socket failed", e);
+        }
+        wakeLoops();
+    }
+
+    /**
+     * Helper method to wake every event loop so it sees that the engine
+     * stopped
+     */
+    private void wakeLoops() {
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * An event loop owns a selector and every client channel registered with
+     * it. All reads and writes of those channels happen on the loop thread.
+     * Other threads hand work to the loop through its task queue
+     *
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Method to run a task on the loop thread
+         *
+         * @param task The task to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Method to hand a newly accepted channel to this loop
+         *
+         * @param channel The accepted client channel
+         */
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        NioConnection connection = new NioConnection(EventLoop.this, channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        Server.addServerConnection(connection);
+                    } catch (ClosedChannelException e) {
+                        log.info("Connection closed before it was registered");
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            // handlers run on this thread and may send to the clients it drains
+            OutboundQueue.forbidBlocking();
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("Event loop error", e);
+                }
+            }
+            close();
+        }
+
+        /**
+         * Helper method to close the connections of this loop and its
+         * selector once the engine stopped. Called on the loop thread
+         */
+        private void close() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                // channels handed over just before the stop are registered
+                // and closed with the others
+                task.run();
+            }
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((NioConnection) key.attachment()).drop();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.error("Closing selector failed", e);
+            }
+        }
+    }
+
+    /**
+     * A client connection served by an event loop. Incoming bytes are
+     * collected until complete frames can be decoded, and outgoing frames are
+     * taken from the outbound queue as fast as the channel accepts them. The
+     * frames waiting in the queue are written together with one gathering
+     * write, and queueing more frames while a flush is already pending does
+     * not add another task to the loop
+     *
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    private class NioConnection extends ServerConnection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final FrameDecoder decoder = new FrameDecoder(MAX_FRAME_SIZE);
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final List<Frame> batch = new ArrayList<>(MAX_BATCH_FRAMES);
+        private ByteBuffer[] buffers = NO_BUFFERS;
+        private int offset = 0;
+        private SelectionKey key;
+        private volatile boolean closed = false;
+        private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+        private final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            super(channel.socket());
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        @Override
+        protected void onFrameQueued() {
+            if (!flushQueued.compareAndSet(false, true)) {
+                // the pending flush takes this frame too
+                return;
+            }
+            if (getFlushWindow() > 0) {
+                Scheduler.schedule(flushKey(), new Runnable() {
+                    @Override
+                    public void run() {
+                        loop.execute(flushTask);
+                    }
+                }, getFlushWindow(), TimeUnit.MILLISECONDS);
+            } else {
+                loop.execute(flushTask);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                getOutboundQueue().close();
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drop();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Method to read whatever is available on the channel and dispatch
+         * every complete message. Called on the loop thread
+         */
+        void read() {
+            try {
+                int count = channel.read(readBuffer);
+                if (count < 0) {
+                    drop();
+                    return;
+                }
+                addBytesReceived(count);
+                readBuffer.flip();
+                List<byte[]> frames = new ArrayList<>();
+                decoder.decode(readBuffer, frames);
+                readBuffer.compact();
+                if (!readBuffer.hasRemaining()) {
+                    // a single frame is larger than the buffer, grow it
+                    ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                    readBuffer.flip();
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                }
+                for (byte[] frame : frames) {
+                    StateDeviceMessage msg = StateDeviceMessage.parseFrom(frame);
+                    log.debug("Message Received");
+                    try {
+                        Server.messageReceived(this, msg);
+                    } catch (RuntimeException e) {
+                        // a failing handler must not cost the client the other messages of this read
+                        log.error("Handling message " + msg.getId() + " from " + this + " failed", e);
+                    }
+                }
+            } catch (IOException e) {
+                log.info("Lost Client connection : " + this, e);
+                drop();
+            }
+        }
+
+        /**
+         * Method to write queued frames until the queue is empty or the
+         * channel stops accepting bytes. The frame being written is taken off
+         * the queue first, so the overflow policy can never drop a frame that
+         * is already partly on the wire. Called on the loop thread
+         */
+        void flush() {
+            flushQueued.set(false);
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            try {
+                if (offset == buffers.length) {
+                    nextBuffers();
+                }
+                while (offset < buffers.length) {
+                    long start = System.nanoTime();
+                    addBytesSent(channel.write(buffers, offset, buffers.length - offset));
+                    addWriteTime(start);
+                    while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                        buffers[offset++] = null;
+                    }
+                    if (offset < buffers.length) {
+                        // socket buffer is full, wait until it drains
+                        setWritePending(true);
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    nextBuffers();
+                }
+                setWritePending(false);
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                log.error("Writing to socket failed", e);
+                drop();
+            }
+        }
+
+        /**
+         * Helper method to take the next batch of queued frames and get a
+         * view of each, leaving no buffers if the queue is empty
+         */
+        private void nextBuffers() {
+            offset = 0;
+            Frame frame = getOutboundQueue().poll();
+            if (frame == null) {
+                buffers = NO_BUFFERS;
+                return;
+            }
+            fillBatch(frame, batch);
+            buffers = new ByteBuffer[batch.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = batch.get(i).buffer();
+            }
+            batch.clear();
+        }
+
+        /**
+         * Helper method to get the scheduler key of a delayed flush
+         */
+        private String flushKey() {
+            return "flush:" + getId();
+        }
+
+        /**
+         * Helper method to unregister and close the channel. Called on the
+         * loop thread
+         */
+        private void drop() {
+            closed = true;
+            getOutboundQueue().close();
+            Scheduler.cancel(flushKey());
+            if (key != null && key.isValid()) {
+                key.cancel();
+                Server.removeServerConnection(this);
+                log.info("Dropping connection. " + Server.getConnectionCount() + " connections remaining.");
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("Closing socket failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package com.alfred.server.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.metrics.Counter;
+import com.alfred.server.metrics.Metrics;
+import com.alfred.server.utils.Config;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Broadcasting
+ * only adds frames to the queue of each connection, and each connection
+ * drains its own queue, so a slow client can no longer hold up the thread that
+ * sent the message or the other clients.
+ *
+ * What happens when the queue is full is decided by the overflow policy:
+ * <ul>
+ * <li><b>DROP_OLDEST:</b> the oldest queued frame is discarded</li>
+ * <li><b>DISCONNECT:</b> the client is disconnected</li>
+ * <li><b>BLOCK:</b> the sender waits for space up to a timeout, then the
+ * client is disconnected</li>
+ * </ul>
+ * A thread that drains queues itself (an event loop of the NioConnectionEngine)
+ * must never wait for space, since the space can only be made by that same
+ * thread. Such threads call forbidBlocking, and BLOCK then fails at once for
+ * them, like DISCONNECT.
+ *
+ * Bulk frames (chunks of large messages) wait in a separate lane and are only
+ * taken when no other frame is waiting, so state updates queued behind an
+ * image are sent between its chunks. The capacity counts both lanes, and
+ * DROP_OLDEST drops bulk frames before any state update: every queued chunk
+ * of the oldest large message at once, since a message with a missing chunk
+ * is useless to the client.
+ *
+ * A version message never overtakes a message still waiting in the bulk
+ * lane: while chunks are queued, version messages wait behind them, so a
+ * client never resumes from a version it has not received the message of.
+ * In the same way a state update waits behind the queued chunks of an
+ * earlier update of its device, or the client would end up showing the older
+ * state.
+ *
+ * With conflation on, a client that falls behind is sent the latest state of
+ * each device instead of every state in between: a state update replaces the
+ * update for the same device still waiting in the queue, and goes to the back
+ * so the order of the latest updates is kept. The latest version message
+ * replaces older ones the same way. Frames that carry a picture follow the
+ * image policy:
+ * <ul>
+ * <li><b>KEEP:</b> every picture is delivered, only plain state updates are
+ * conflated</li>
+ * <li><b>LATEST:</b> a picture replaces an older picture of the same device
+ * that is still waiting</li>
+ * <li><b>DROP:</b> a picture is replaced by any newer update of its device,
+ * so a lagging client may skip pictures</li>
+ * </ul>
+ * Chunks of large messages are never conflated.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class OutboundQueue {
+
+    /**
+     * Behavior when a frame is offered to a full queue
+     */
+    public enum OverflowPolicy { DROP_OLDEST, DISCONNECT, BLOCK }
+
+    /**
+     * Conflation of frames that carry a picture
+     */
+    public enum ImagePolicy { KEEP, LATEST, DROP }
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TIMEOUT = 1000;
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final ArrayDeque<Frame> bulk = new ArrayDeque<>();
+    // threads that must never wait in offer
+    private static final ThreadLocal<Boolean> blockingForbidden = new ThreadLocal<>();
+    // the queued frame for each conflation key
+    private final Map<String, Frame> latest = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition empty = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long timeoutMillis;
+    private final ImagePolicy imagePolicy;
+    private boolean conflate;
+    private long dropped = 0;
+    private long conflated = 0;
+    private boolean closed = false;
+    private static final Counter droppedFrames = Metrics.counter("alfred_outbound_dropped_total",
+            "Frames dropped from full client queues");
+    private static final Counter conflatedFrames = Metrics.counter("alfred_outbound_conflated_total",
+            "Queued frames replaced by a newer update of the same device");
+    private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+
+    /**
+     * Constructor order is capacity, overflow policy, timeout
+     *
+     * @param capacity
+     *            The maximum number of queued frames
+     * @param policy
+     *            The behavior when the queue is full
+     * @param timeoutMillis
+     *            How long the BLOCK policy waits for space
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long timeoutMillis) {
+        this(capacity, policy, timeoutMillis, false, ImagePolicy.KEEP);
+    }
+
+    /**
+     * Constructor order is capacity, overflow policy, timeout, conflation,
+     * image policy
+     *
+     * @param capacity
+     *            The maximum number of queued frames
+     * @param policy
+     *            The behavior when the queue is full
+     * @param timeoutMillis
+     *            How long the BLOCK policy waits for space
+     * @param conflate
+     *            True to replace waiting updates with newer ones
+     * @param imagePolicy
+     *            The conflation of frames that carry a picture
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long timeoutMillis, boolean conflate,
+            ImagePolicy imagePolicy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.timeoutMillis = timeoutMillis;
+        this.conflate = conflate;
+        this.imagePolicy = imagePolicy;
+    }
+
+    /**
+     * Method to create a queue configured from the server properties
+     *
+     * @return A new outbound queue
+     */
+    public static OutboundQueue create() {
+        int capacity = (int) Server.getLongProperty(Config.QUEUE_SIZE, DEFAULT_CAPACITY);
+        long timeout = Server.getLongProperty(Config.OVERFLOW_TIMEOUT, DEFAULT_TIMEOUT);
+        OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+        String value = Server.getProperties() != null ? Server.getProperty(Config.OVERFLOW_POLICY) : null;
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                policy = OverflowPolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.error("Unknown overflow policy " + value + ", using " + policy);
+            }
+        }
+        value = Server.getProperties() != null ? Server.getProperty(Config.CONFLATE) : null;
+        boolean conflate = value != null && "true".equalsIgnoreCase(value.trim());
+        ImagePolicy imagePolicy = ImagePolicy.KEEP;
+        value = Server.getProperties() != null ? Server.getProperty(Config.IMAGE_POLICY) : null;
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                imagePolicy = ImagePolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.error("Unknown image policy " + value + ", using " + imagePolicy);
+            }
+        }
+        return new OutboundQueue(capacity, policy, timeout, conflate, imagePolicy);
+    }
+
+    /**
+     * Method to add a frame to the queue
+     *
+     * @param frame
+     *            The frame to write to the client
+     * @return True if the frame was queued (or an older frame was dropped to
+     *         make room), false if the client should be disconnected
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            // a version must not overtake the chunks of an earlier message,
+            // or a client that resumes from it would never get that message,
+            // and a state update must not overtake the chunks of its device
+            boolean toBulk = frame.isBulk()
+                    || (ControlMessages.VERSION.equals(frame.getConflationKey()) && !bulk.isEmpty())
+                    || hasChunksFor(frame.getDeviceId());
+            String key = toBulk ? null : conflationKey(frame);
+            if (key != null) {
+                Frame waiting = latest.remove(key);
+                if (waiting != null && frames.remove(waiting)) {
+                    conflated++;
+                    conflatedFrames.increment();
+                }
+            }
+            if (count() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST :
+                        int count = dropOldestBulk();
+                        if (count == 0) {
+                            forget(frames.poll());
+                            count = 1;
+                        }
+                        dropped += count;
+                        droppedFrames.add(count);
+                        log.debug("Outbound queue full, dropped " + count + " oldest frame(s)");
+                        break;
+                    case BLOCK :
+                        if (blockingForbidden.get() != null) {
+                            return false;
+                        }
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                        while (count() >= capacity && !closed) {
+                            if (nanos <= 0) {
+                                return false;
+                            }
+                            nanos = notFull.awaitNanos(nanos);
+                        }
+                        if (closed) {
+                            return false;
+                        }
+                        break;
+                    default :
+                        return false;
+                }
+            }
+            if (toBulk) {
+                bulk.add(frame);
+            } else {
+                frames.add(frame);
+                if (key != null) {
+                    latest.put(key, frame);
+                }
+            }
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method for threads that drain outbound queues themselves to never wait
+     * in offer. The BLOCK policy fails at once on the calling thread from now
+     * on, instead of waiting for space only that thread can make
+     */
+    public static void forbidBlocking() {
+        blockingForbidden.set(Boolean.TRUE);
+    }
+
+    /**
+     * Method to take the next frame without waiting
+     *
+     * @return The next frame, or null if the queue is empty
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            Frame frame = next();
+            if (frame != null) {
+                notFull.signal();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to wait for the next frame. Used by connections that drain their
+     * queue from a dedicated writer thread
+     *
+     * @return The next frame, or null once the queue has been closed
+     * @throws InterruptedException if the writer thread is interrupted
+     */
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count() == 0 && !closed) {
+                notEmpty.await();
+            }
+            Frame frame = next();
+            if (frame != null) {
+                notFull.signal();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to take waiting frames without waiting, so a connection can
+     * write several of them at once. Frames are taken in the order poll would
+     * return them, until the limits are reached
+     *
+     * @param batch
+     *            The list the frames are added to
+     * @param maxFrames
+     *            The maximum number of frames to take
+     * @param maxBytes
+     *            The maximum total size of the frames taken. Taking stops
+     *            before a frame that does not fit
+     * @return The number of frames taken
+     */
+    public int drainTo(List<Frame> batch, int maxFrames, int maxBytes) {
+        lock.lock();
+        try {
+            int taken = 0;
+            while (taken < maxFrames) {
+                Frame frame = frames.isEmpty() ? bulk.peek() : frames.peek();
+                if (frame == null || frame.size() > maxBytes) {
+                    break;
+                }
+                batch.add(next());
+                maxBytes -= frame.size();
+                taken++;
+            }
+            if (taken > 0) {
+                notFull.signalAll();
+            }
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to wait until every queued frame has been taken, e.g. to let a
+     * client receive its last messages before it is disconnected
+     *
+     * @param timeoutMillis How long to wait
+     * @return True if the queue is empty, false if the time ran out
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (count() > 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = empty.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to close the queue. Queued frames are discarded, waiting senders
+     * and writers are released, and later offers are refused
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            bulk.clear();
+            latest.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+            empty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of frames waiting to be written
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of frames discarded by the DROP_OLDEST policy
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of frames replaced by newer updates
+     */
+    public long getConflatedCount() {
+        lock.lock();
+        try {
+            return conflated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return True if waiting updates are replaced by newer ones
+     */
+    public boolean isConflating() {
+        lock.lock();
+        try {
+            return conflate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Method to turn conflation on or off for this client. Frames already
+     * waiting are not conflated after conflation is turned on
+     *
+     * @param conflate True to replace waiting updates with newer ones
+     */
+    public void setConflating(boolean conflate) {
+        lock.lock();
+        try {
+            this.conflate = conflate;
+            latest.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Helper method to take the next frame, state updates first. Must be
+     * called with the lock held
+     */
+    private Frame next() {
+        Frame frame = frames.poll();
+        if (frame != null) {
+            forget(frame);
+        } else {
+            frame = bulk.poll();
+        }
+        if (count() == 0) {
+            empty.signalAll();
+        }
+        return frame;
+    }
+
+    /**
+     * Helper method to drop the oldest bulk frame. If it is a chunk, every
+     * other queued chunk of its transfer is dropped too, since the client can
+     * never join a transfer with a missing chunk. Must be called with the
+     * lock held
+     *
+     * @return The number of frames dropped
+     */
+    private int dropOldestBulk() {
+        Frame oldest = bulk.poll();
+        if (oldest == null) {
+            return 0;
+        }
+        int count = 1;
+        if (oldest.getTransfer() != 0) {
+            Iterator<Frame> waiting = bulk.iterator();
+            while (waiting.hasNext()) {
+                if (waiting.next().getTransfer() == oldest.getTransfer()) {
+                    waiting.remove();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Helper method to check if chunks of a message for a device are waiting
+     * in the bulk lane. Must be called with the lock held
+     */
+    private boolean hasChunksFor(String deviceId) {
+        if (deviceId == null) {
+            return false;
+        }
+        for (Frame waiting : bulk) {
+            if (waiting.getTransfer() != 0 && deviceId.equals(waiting.getDeviceId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to get the key a frame is conflated under in this queue,
+     * or null if it is never replaced
+     */
+    private String conflationKey(Frame frame) {
+        String key = frame.getConflationKey();
+        if (!conflate || key == null || frame.isBulk()) {
+            return null;
+        }
+        if (frame.hasImage()) {
+            switch (imagePolicy) {
+                case LATEST :
+                    return "image:" + key;
+                case DROP :
+                    return key;
+                default :
+                    return null;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Helper method to remove a frame that left the queue from the latest
+     * frames. Must be called with the lock held
+     */
+    private void forget(Frame frame) {
+        if (frame != null && !latest.isEmpty()) {
+            String key = conflationKey(frame);
+            if (key != null) {
+                latest.remove(key, frame);
+            }
+        }
+    }
+
+    private int count() {
+        return frames.size() + bulk.size();
+    }
+}
@@ -1,24 +1,27 @@
 package com.alfred.server.server;
 
+import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.handlers.StateDeviceHandler;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
 import com.alfred.common.network.NetworkHandler;
 import com.alfred.server.email.Email;
+import com.alfred.server.email.EmailDispatcher;
+import com.alfred.server.metrics.Gauge;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
 import com.alfred.server.utils.Config;
 
 /**
@@ -31,11 +34,48 @@ import com.alfred.server.utils.Config;
  */
 public class Server {
 
-    private static ArrayList<Socket> serverConnections = new ArrayList<Socket>();
-    private static List<String> emailClients = new ArrayList<String>();
-    private static ArrayList<NetworkHandler> networkHandlers = new ArrayList<>();
+    private static final ConnectionRegistry connections = new ConnectionRegistry();
+    private static final List<String> emailClients = new CopyOnWriteArrayList<String>();
+    private static EmailDispatcher emailDispatcher = null;
+    private static final MessageRouter networkHandlers = new MessageRouter();
+    private static final DeviceHandlerList deviceHandlers = new DeviceHandlerList();
+    private static final ConcurrentMap<String, ControlHandler> controlHandlers = new ConcurrentHashMap<>();
+    private static StateChangeLog changeLog = null;
     private static final Logger log = LoggerFactory.getLogger(Server.class);
     private static Properties properties = null;
+    private static final Histogram broadcastTime = Metrics.histogram("alfred_broadcast_seconds",
+            "Time to encode a state update and queue it for every client");
+
+    static {
+        // the only handler the StateDeviceManager ever sees, see DeviceHandlerList
+        StateDeviceManager.addDeviceHandler(deviceHandlers);
+        Metrics.gauge("alfred_connections", "Connected clients", new Gauge() {
+            @Override
+            public long getValue() {
+                return getConnectionCount();
+            }
+        });
+        Metrics.gauge("alfred_outbound_queued_frames", "Frames waiting to be written to all clients", new Gauge() {
+            @Override
+            public long getValue() {
+                long total = 0;
+                for (ServerConnection connection : getServerConnections()) {
+                    total += connection.getOutboundQueue().size();
+                }
+                return total;
+            }
+        });
+        Metrics.gauge("alfred_outbound_queue_max", "Frames waiting for the most backed up client", new Gauge() {
+            @Override
+            public long getValue() {
+                long max = 0;
+                for (ServerConnection connection : getServerConnections()) {
+                    max = Math.max(max, connection.getOutboundQueue().size());
+                }
+                return max;
+            }
+        });
+    }
     
     /* ------------------------------------------------------------------
      *   PROPERTIES
@@ -69,17 +109,49 @@ public class Server {
         } else 
             return null;
     }
+
+    /**
+     * Method to get a numeric property value. Falls back to the default value
+     * if the key is missing or the value is not a number
+     * 
+     * @param key The key of the property
+     * @param defaultValue The value to use if the property is not set
+     * @return The property value of the given key
+     */
+    public static long getLongProperty(String key, long defaultValue) {
+        String value = properties != null ? properties.getProperty(key) : null;
+        if(value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Property " + key + " is not a number: " + value);
+            return defaultValue;
+        }
+    }
     
     /* ------------------------------------------------------------------
      *   CONNECTIONS
      * ------------------------------------------------------------------*/
    /**
-    *  Method to fetch all client connections registered with the server
+    *  Method to fetch all client connections registered with the server. The
+    *  list is a snapshot and is safe to iterate while connections come and go
     *  
     * @return A List of the connections registered with the server
     */
-    public static List<Socket> getServerConnections() {
-        return serverConnections;
+    public static List<ServerConnection> getServerConnections() {
+        return connections.snapshot();
+    }
+
+    /**
+     * Method to find the registered connection for a given socket
+     * 
+     * @param socket A reference to the socket of the connection
+     * @return The connection, or null if the socket is not registered
+     */
+    public static ServerConnection getServerConnection(Socket socket) {
+        return connections.get(socket);
     }
 
     /**
@@ -87,25 +159,55 @@ public class Server {
      * registered NetworkHandlers that a new connection has been added
      * and provide a reference to the connection
      * 
-     * @param connection A reference to the socket connection
+     * @param connection A reference to the client connection
      */
-    public static void addServerConnection(Socket connection) {
-        serverConnections.add(connection);
-        log.info("New Connection added");
+    public static void addServerConnection(ServerConnection connection) {
+        if(!connections.add(connection)) {
+            return;
+        }
+        log.info("New Connection added: " + connection);
         // Notify Connection Handlers
-        for(NetworkHandler handler : networkHandlers) {
-            handler.onConnect(connection);
+        for(NetworkHandler handler : networkHandlers.getHandlers()) {
+            handler.onConnect(connection.getSocket());
         }
     }
 
     /**
      * Method to remove a specific server connection
      * 
-     * @param connection A reference to the socket connection
+     * @param connection A reference to the client connection
      */
-    public static void removeServerConnection(Socket connection) {
-        serverConnections.remove(connection);
-        log.info("Connection removed");
+    public static void removeServerConnection(ServerConnection connection) {
+        if(connections.remove(connection)) {
+            log.info("Connection removed: " + connection + ", " + connection.getBytesSent() + " bytes sent, "
+                    + connection.getBytesReceived() + " bytes received");
+        }
+    }
+
+    /**
+     * Method to close every client connection. Every connection is removed
+     * from the server first, so no more messages are queued for it, then the
+     * connections write the messages still waiting in their outbound queues
+     * at the same time, until one deadline for all of them
+     * 
+     * @param timeoutMillis The time allowed for draining all connections
+     */
+    public static void closeConnections(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<ServerConnection> closing = new ArrayList<>(getServerConnections());
+        for (ServerConnection connection : closing) {
+            removeServerConnection(connection);
+        }
+        try {
+            for (ServerConnection connection : closing) {
+                connection.getOutboundQueue().awaitEmpty(Math.max(0, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ServerConnection connection : closing) {
+            connection.close();
+        }
     }
 
     /**
@@ -114,7 +216,7 @@ public class Server {
      * @return The number of connections registered with the server
      */
     public static int getConnectionCount() {
-        return serverConnections.size();
+        return connections.size();
     }
 
     /* ------------------------------------------------------------------
@@ -158,15 +260,40 @@ public class Server {
      * ------------------------------------------------------------------*/
     /**
      * Method to add a network handler. Add yourself as a network handler if you
-     * want to be notified when a connection is added to the server and when a
-     * message is received by the server
+     * want to be notified when a connection is added to the server and when
+     * any message is received by the server
      * 
      * @param handler a reference to the Network Handler
      */
     public static void addNetworkHandler(NetworkHandler handler) {
-        if(!networkHandlers.contains(handler)) {
+        if(networkHandlers.add(handler)) {
             log.info("Adding server connection handler: " + handler.getClass());
-            networkHandlers.add(handler);
+        }
+    }
+
+    /**
+     * Method to add a network handler for the messages of a single device.
+     * The handler is also notified when a connection is added
+     * 
+     * @param deviceId The id of the device the handler is interested in
+     * @param handler a reference to the Network Handler
+     */
+    public static void addNetworkHandler(String deviceId, NetworkHandler handler) {
+        if(networkHandlers.add(deviceId, handler)) {
+            log.info("Adding server connection handler for " + deviceId + ": " + handler.getClass());
+        }
+    }
+
+    /**
+     * Method to add a network handler for the messages of every device of a
+     * type. The handler is also notified when a connection is added
+     * 
+     * @param type The device type the handler is interested in
+     * @param handler a reference to the Network Handler
+     */
+    public static void addNetworkHandler(Type type, NetworkHandler handler) {
+        if(networkHandlers.add(type, handler)) {
+            log.info("Adding server connection handler for " + type + ": " + handler.getClass());
         }
     }
     
@@ -176,27 +303,106 @@ public class Server {
      * @param handler A reference to the Network Handler
      */
     public static void removeNetworkHandler(NetworkHandler handler) {
-        if(networkHandlers.contains(handler)) {
+        if(networkHandlers.remove(handler)) {
             log.info("Removing server connection handler: " + handler.getClass());
-            networkHandlers.remove(handler);
         }
     }
+
+    /**
+     * Method to add a state device handler. Plugins are activated in
+     * parallel and reloaded while devices update, so they register their
+     * state handlers here instead of with the StateDeviceManager directly
+     * 
+     * @param handler A reference to the State Device Handler
+     */
+    public static void addDeviceHandler(StateDeviceHandler handler) {
+        deviceHandlers.add(handler);
+    }
+
+    /**
+     * Method to remove a state device handler
+     * 
+     * @param handler A reference to the State Device Handler
+     */
+    public static void removeDeviceHandler(StateDeviceHandler handler) {
+        deviceHandlers.remove(handler);
+    }
     
     /**
-     * Method for receiving a new message. This method notifies all registered
-     * NetworkHandlers when a new message is received by the server by calling
-     * the "onMessageReceived" method. It is the handler's responsibility to
-     * determine if the message is relevant to it's functionality (ie. use the
-     * getId() or getType() method to determine if the message is relevant)
+     * Method for receiving a new message. This method calls the
+     * "onMessageReceived" method of the NetworkHandlers registered for the
+     * message's device id, for its type, and for every message. Handlers added
+     * without a device id or type receive every message and are responsible
+     * for determining if the message is relevant to their functionality
      * 
      * @param msg
      *            A reference to a StateDeviceMessage
      */
     public static void messageReceived(StateDeviceMessage msg) {
-     // Notify Connection Handlers
-        for(NetworkHandler handler : networkHandlers) {
-            log.debug("Message Received: notifying handler " + handler);
-            handler.onMessageReceived(msg);
+        log.debug("Message Received: routing message for " + msg.getId());
+        networkHandlers.route(msg);
+    }
+
+    /**
+     * Method for receiving a new message from a client connection. Control
+     * messages are passed to the ControlHandler registered for their command,
+     * every other message is routed like "messageReceived(msg)"
+     * 
+     * @param connection
+     *            The connection the message was received on
+     * @param msg
+     *            A reference to a StateDeviceMessage
+     */
+    public static void messageReceived(ServerConnection connection, StateDeviceMessage msg) {
+        if(!ControlMessages.isControl(msg)) {
+            messageReceived(msg);
+            return;
+        }
+        connection.enableControl();
+        if(ControlMessages.PING.equals(msg.getId())) {
+            try {
+                connection.send(ControlMessages.create(ControlMessages.PONG, msg.getName()));
+            } catch (IOException e) {
+                Server.removeServerConnection(connection);
+                connection.close();
+                log.error("Writing to socket failed", e);
+            }
+            return;
+        }
+        ControlHandler handler = controlHandlers.get(msg.getId());
+        if(handler != null) {
+            handler.onControlMessage(connection, msg);
+        } else if(!ControlMessages.HELLO.equals(msg.getId()) && !ControlMessages.PONG.equals(msg.getId())) {
+            log.debug("No handler for control message " + msg.getId());
+        }
+    }
+
+    /**
+     * Method to add the handler for a control message command. There is one
+     * handler per command
+     * 
+     * @param command The command, see ControlMessages
+     * @param handler A reference to the Control Handler
+     * @return True if the handler was added, false if the command already
+     *         has a handler
+     */
+    public static boolean addControlHandler(String command, ControlHandler handler) {
+        if(controlHandlers.putIfAbsent(command, handler) == null) {
+            log.info("Adding control handler for " + command + ": " + handler.getClass());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method to remove the handler for a control message command
+     * 
+     * @param command The command the handler was added for
+     * @param handler A reference to the Control Handler
+     */
+    public static void removeControlHandler(String command, ControlHandler handler) {
+        if(controlHandlers.remove(command, handler)) {
+            log.info("Removing control handler for " + command);
         }
     }
 
@@ -204,66 +410,183 @@ public class Server {
      *   HELPER METHODS
      * ------------------------------------------------------------------*/
     /**
-     * Method to send a state update message to all connected clients.
+     * Method to send a state update message to all connected clients. The
+     * message is encoded once, so the cost of encoding does not grow with the
+     * number of clients. Large messages are sent in chunks to the clients
+     * that understand control messages, so their other updates are not held
+     * up behind the large one
+     * 
+     * The message is recorded in the state change log, and clients that
+     * understand control messages are sent the version of the change after
+     * the message. For a chunked message the version waits behind the last
+     * chunk
      * 
      * @param msg A reference to a StateDevice
      */
     public static void sendMessage(StateDeviceMessage msg) {
+        sendMessage(msg, msg);
+    }
+
+    /**
+     * Method to send a state update message to all connected clients, with
+     * a different version of the message for the clients that do not
+     * understand control messages. Used when the control clients can request
+     * more with control messages (e.g. a thumbnail of a picture whose full
+     * resolution they can ask for) and the other clients cannot
+     * 
+     * @param msg The message for the clients that understand control messages
+     * @param legacyMsg The message for the other clients
+     */
+    public static void sendMessage(StateDeviceMessage msg, StateDeviceMessage legacyMsg) {
+        long start = System.nanoTime();
 
-        // Send message to each client
-        for (Socket socket : getServerConnections()) {
-            if (socket.isConnected()) {
+        // Encode the message once and share the frame between all clients
+        Frame frame;
+        Frame legacyFrame;
+        Frame versionFrame;
+        int chunkSize = Frame.getChunkSize();
+        long version = getChangeLog().append(msg);
+        try {
+            frame = Frame.encode(msg);
+            legacyFrame = legacyMsg == msg ? frame : Frame.encode(legacyMsg);
+            versionFrame = Frame.encode(ControlMessages.create(ControlMessages.VERSION, String.valueOf(version)));
+        } catch (IOException e) {
+            log.error("Encoding message failed", e);
+            return;
+        }
+        List<Frame> chunks = null;
+        Frame chunksVersionFrame = null;
+
+        // Send message to each client, logged once rather than per client
+        log.debug("Sending message for " + msg.getId() + " to " + getConnectionCount() + " clients");
+        for (ServerConnection connection : getServerConnections()) {
+            if (connection.getSocket().isConnected()) {
                 try {
-                    log.info("Sending message");
-                    msg.writeDelimitedTo(socket.getOutputStream());
+                    if (!connection.isControlEnabled()) {
+                        connection.send(legacyFrame);
+                    } else if (msg.getSerializedSize() > chunkSize) {
+                        if (chunks == null) {
+                            chunks = Frame.encodeChunks(msg, chunkSize);
+                            chunksVersionFrame = versionFrame.afterChunks(chunks);
+                        }
+                        connection.send(chunks);
+                        connection.send(chunksVersionFrame);
+                    } else {
+                        connection.send(frame);
+                        connection.send(versionFrame);
+                    }
                 } catch (Exception e) {
-                    Server.removeServerConnection(socket);
+                    Server.removeServerConnection(connection);
+                    connection.close();
+                    log.error("Writing to socket failed", e);
+                }
+            }
+        }
+        broadcastTime.recordSince(start);
+    }
+
+    /**
+     * Method to get the log of the state changes sent to clients. The log is
+     * created on first use, sized from the server properties
+     * 
+     * @return The state change log
+     */
+    public static synchronized StateChangeLog getChangeLog() {
+        if (changeLog == null) {
+            int capacity = (int) getLongProperty(Config.CHANGELOG_SIZE, StateChangeLog.DEFAULT_CAPACITY);
+            changeLog = new StateChangeLog(capacity);
+        }
+        return changeLog;
+    }
+
+    /**
+     * Method to send a control message to every client that has opted in to
+     * control messages
+     * 
+     * @param msg A control message, see ControlMessages
+     */
+    public static void sendControlMessage(StateDeviceMessage msg) {
+        Frame frame = null;
+        for (ServerConnection connection : getServerConnections()) {
+            if (connection.isControlEnabled()) {
+                try {
+                    if (frame == null) {
+                        frame = Frame.encode(msg);
+                    }
+                    connection.send(frame);
+                } catch (IOException e) {
+                    Server.removeServerConnection(connection);
+                    connection.close();
                     log.error("Writing to socket failed", e);
                 }
             }
         }
     }
 
+    /**
+     * Method to send a message to a single client. NetworkHandlers receive the
+     * socket of a new connection in "onConnect" and should use this method
+     * rather than writing to the socket directly, because sockets served by
+     * the non-blocking engine cannot be written to as a stream
+     * 
+     * @param socket A reference to the socket of the connection
+     * @param msg A reference to a StateDeviceMessage
+     * @throws IOException if the message could not be sent
+     */
+    public static void sendMessage(Socket socket, StateDeviceMessage msg) throws IOException {
+        ServerConnection connection = getServerConnection(socket);
+        if (connection != null) {
+            connection.send(msg);
+        } else {
+            msg.writeDelimitedTo(socket.getOutputStream());
+        }
+    }
+
     /**
      * Method to send an email message to all email clients. The email clients
      * should be added automatically from the properties file. The default file
      * location of the properties file is [projectRoot]/cfg/config.properties
      * 
+     * The email is queued and sent in the background by the EmailDispatcher,
+     * so the caller is not held up by the mail server
+     * 
      * @param email
      *            A reference to a valid email object
      */
     public static void sendEmail(Email email) {
         if(emailClients.size() > 0) {
+            getEmailDispatcher().submit(email);
+        }
+    }
 
-            final String username = getProperty(Config.EMAIL_USERNAME);
-            final String password = getProperty(Config.EMAIL_TOKEN);
-
-            Session session = Session.getInstance(getProperties(), new javax.mail.Authenticator() {
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(username, password);
-                }
-            });
+    /**
+     * Method to get the email dispatcher. The dispatcher is created and
+     * started the first time an email is sent
+     * 
+     * @return The email dispatcher
+     */
+    public static synchronized EmailDispatcher getEmailDispatcher() {
+        if(emailDispatcher == null) {
+            emailDispatcher = new EmailDispatcher(getProperties(),
+                    getProperty(Config.EMAIL_USERNAME),
+                    getProperty(Config.EMAIL_TOKEN),
+                    emailClients,
+                    (int) getLongProperty(Config.EMAIL_QUEUE_SIZE, EmailDispatcher.DEFAULT_CAPACITY),
+                    (int) getLongProperty(Config.EMAIL_ATTEMPTS, EmailDispatcher.DEFAULT_ATTEMPTS),
+                    getLongProperty(Config.EMAIL_RETRY_DELAY, EmailDispatcher.DEFAULT_RETRY_DELAY));
+            emailDispatcher.start();
+        }
+        return emailDispatcher;
+    }
 
-            // convert clients list into a comma separated string
-            String clients = String.join(",", emailClients);
-            
-            try {
-                log.info("Email on thread " + Thread.currentThread().getId());
-                Message message = new MimeMessage(session);
-                message.setRecipients(Message.RecipientType.TO,
-                    InternetAddress.parse(clients));
-                message.setSubject(email.getSubject());
-
-                // add email content to message
-                message.setContent(email.getContent());
-
-                // send email
-                Transport.send(message);
-                log.info("Email sent to " + clients);
-            } catch (MessagingException e) {
-                log.error("Email error", e);
-                throw new RuntimeException(e);
-            }
+    /**
+     * Method to stop the email dispatcher, if it was started. Called when the
+     * server is shutting down
+     */
+    public static synchronized void stopEmailDispatcher() {
+        if(emailDispatcher != null) {
+            emailDispatcher.shutdown();
+            emailDispatcher = null;
         }
     }
     
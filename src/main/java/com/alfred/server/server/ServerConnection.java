@@ -0,0 +1,329 @@
+package com.alfred.server.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.server.metrics.Counter;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
+import com.alfred.server.utils.Config;
+
+/**
+ * Base class for a client connection registered with the server. The server
+ * only talks to its clients through this class, so it does not need to know
+ * if a connection is served by a dedicated thread (ClientConnection) or by the
+ * non-blocking engine (NioConnectionEngine).
+ *
+ * Sending a message never writes to the socket on the caller's thread. The
+ * encoded frame is added to the connection's bounded OutboundQueue and the
+ * connection drains the queue on its own writer.
+ *
+ * Writers take the queue in batches (fillBatch) and write each batch with a
+ * single flush, so a burst of updates costs one system call and as few TCP
+ * segments as possible instead of one of each per message. The optional
+ * flush window ("alfred.network.flushwindow") holds the first frame of a
+ * batch back for a few milliseconds so the rest of a burst can join it.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public abstract class ServerConnection {
+
+    /** The most frames written to a client at once */
+    protected static final int MAX_BATCH_FRAMES = 64;
+    /** The most bytes written to a client at once, unless one frame is larger */
+    protected static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+    private static final Counter sentBytes = Metrics.counter("alfred_client_sent_bytes_total",
+            "Bytes written to clients");
+    private static final Counter receivedBytes = Metrics.counter("alfred_client_received_bytes_total",
+            "Bytes received from clients");
+    private static final Counter overflows = Metrics.counter("alfred_client_overflows_total",
+            "Clients dropped because their outbound queue overflowed");
+    private static final Histogram writeTime = Metrics.histogram("alfred_client_write_seconds",
+            "Time to write to a client socket");
+
+    private final long id;
+    private final long connectTime;
+    private final Socket socket;
+    private final OutboundQueue outboundQueue;
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private volatile boolean controlEnabled = false;
+    private volatile long lastReceiveTime;
+    private volatile long lastPingTime = 0;
+    private volatile long writePendingSince = 0;
+    private final long flushWindow;
+
+    protected ServerConnection(Socket socket) {
+        this.id = nextId.getAndIncrement();
+        this.connectTime = System.currentTimeMillis();
+        this.lastReceiveTime = connectTime;
+        this.socket = socket;
+        this.outboundQueue = OutboundQueue.create();
+        this.flushWindow = Math.max(0, Server.getLongProperty(Config.FLUSH_WINDOW, 0));
+    }
+
+    /**
+     * Method for the connection engines to set the options of an accepted
+     * client socket from the server properties. TCP keepalive is on unless
+     * "alfred.network.keepalive" is false, so the operating system also
+     * finds half-open sockets of clients that never opted in to heartbeats.
+     * Nagle's algorithm is off unless "alfred.network.nodelay" is false,
+     * since the writers already batch small frames themselves
+     *
+     * @param socket The accepted socket
+     * @throws SocketException if an option cannot be set
+     */
+    static void configureSocket(Socket socket) throws SocketException {
+        String keepAlive = Server.getProperties() != null ? Server.getProperty(Config.KEEPALIVE) : null;
+        socket.setKeepAlive(keepAlive == null || !"false".equalsIgnoreCase(keepAlive.trim()));
+        String noDelay = Server.getProperties() != null ? Server.getProperty(Config.TCP_NODELAY) : null;
+        socket.setTcpNoDelay(noDelay == null || !"false".equalsIgnoreCase(noDelay.trim()));
+    }
+
+    /**
+     * @return The id of this connection, unique for the life of the server
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return The time the connection was established, in milliseconds
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * @return True if the client has opted in to control messages
+     */
+    public boolean isControlEnabled() {
+        return controlEnabled;
+    }
+
+    /**
+     * Method to record that the client understands control messages. Set
+     * when the first control message is received from the client
+     */
+    public void enableControl() {
+        controlEnabled = true;
+    }
+
+    /**
+     * @return The number of bytes written to the client
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return The number of bytes received from the client
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return The time anything was last received from the client, or the
+     *         connect time, in milliseconds
+     */
+    public long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    /**
+     * Method to get how long the writer has been stuck. A writer is stuck
+     * when it has bytes to write and the client has not accepted any of them
+     *
+     * @param now The current time in milliseconds
+     * @return The time since the last progress of a pending write, or 0 if
+     *         no write is pending
+     */
+    public long getWriteStallTime(long now) {
+        long since = writePendingSince;
+        return since != 0 ? Math.max(0, now - since) : 0;
+    }
+
+    /**
+     * @return The time the last heartbeat was sent to the client
+     */
+    long getLastPingTime() {
+        return lastPingTime;
+    }
+
+    /**
+     * Method to record that a heartbeat was sent to the client
+     *
+     * @param time The time in milliseconds
+     */
+    void setLastPingTime(long time) {
+        lastPingTime = time;
+    }
+
+    /**
+     * @return The milliseconds the first frame of a batch waits for more
+     *         frames before the batch is written, 0 to write at once
+     */
+    public long getFlushWindow() {
+        return flushWindow;
+    }
+
+    /**
+     * Method for connection implementations to collect the frames to write
+     * together: the given frame, followed by the frames already waiting in the
+     * queue, up to MAX_BATCH_FRAMES frames and MAX_BATCH_BYTES bytes
+     *
+     * @param first
+     *            The frame taken from the queue that starts the batch
+     * @param batch
+     *            The list the frames are added to
+     * @return The total size of the batch in bytes
+     */
+    protected int fillBatch(Frame first, List<Frame> batch) {
+        batch.add(first);
+        outboundQueue.drainTo(batch, MAX_BATCH_FRAMES - 1, MAX_BATCH_BYTES - first.size());
+        int size = 0;
+        for (Frame frame : batch) {
+            size += frame.size();
+        }
+        return size;
+    }
+
+    /**
+     * Method for connection implementations to record written bytes
+     *
+     * @param count The number of bytes written
+     */
+    protected void addBytesSent(long count) {
+        bytesSent.addAndGet(count);
+        sentBytes.add(count);
+        if (count > 0 && writePendingSince != 0) {
+            writePendingSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Method for connection implementations to record if they are waiting
+     * for the client to accept bytes, so stuck writers can be found. Written
+     * bytes (addBytesSent) count as progress
+     *
+     * @param pending True when a write starts or is left incomplete, false
+     *            when everything queued has been written
+     */
+    protected void setWritePending(boolean pending) {
+        if (!pending) {
+            writePendingSince = 0;
+        } else if (writePendingSince == 0) {
+            writePendingSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Method for connection implementations to record the time a write to
+     * the socket took
+     *
+     * @param startNanos The System.nanoTime before the write
+     */
+    protected void addWriteTime(long startNanos) {
+        writeTime.recordSince(startNanos);
+    }
+
+    /**
+     * Method for connection implementations to record received bytes
+     *
+     * @param count The number of bytes received
+     */
+    protected void addBytesReceived(long count) {
+        bytesReceived.addAndGet(count);
+        receivedBytes.add(count);
+        lastReceiveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to get the socket backing this connection. The socket is handed
+     * to NetworkHandlers so they can identify the connection
+     *
+     * @return The socket of this connection
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return The queue of frames waiting to be written to this connection
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Method to queue a message for the client on the other end of this
+     * connection. Large messages are sent in chunks if the client understands
+     * control messages
+     *
+     * @param msg A reference to a StateDeviceMessage
+     * @throws IOException if the connection should be dropped, either because
+     *             it is closed or because its queue overflowed
+     */
+    public void send(StateDeviceMessage msg) throws IOException {
+        int chunkSize = Frame.getChunkSize();
+        if (controlEnabled && msg.getSerializedSize() > chunkSize) {
+            send(Frame.encodeChunks(msg, chunkSize));
+        } else {
+            send(Frame.encode(msg));
+        }
+    }
+
+    /**
+     * Method to queue the chunk frames of a large message
+     *
+     * @param chunks The frames returned by Frame.encodeChunks
+     * @throws IOException if the connection should be dropped, either because
+     *             it is closed or because its queue overflowed
+     */
+    public void send(List<Frame> chunks) throws IOException {
+        for (Frame chunk : chunks) {
+            send(chunk);
+        }
+    }
+
+    /**
+     * Method to queue an encoded frame for the client. Broadcasts encode a
+     * message once and pass the same frame to every connection
+     *
+     * @param frame An encoded message
+     * @throws IOException if the connection should be dropped, either because
+     *             it is closed or because its queue overflowed
+     */
+    public void send(Frame frame) throws IOException {
+        if (!outboundQueue.offer(frame)) {
+            overflows.increment();
+            throw new IOException("Outbound queue overflow for connection " + id);
+        }
+        onFrameQueued();
+    }
+
+    /**
+     * Called after a frame has been added to the outbound queue, so the
+     * connection can schedule its writer
+     */
+    protected abstract void onFrameQueued();
+
+    /**
+     * Method to close the connection. Closing an already closed connection
+     * has no effect
+     */
+    public abstract void close();
+
+    @Override
+    public String toString() {
+        return "connection " + id + " (" + socket.getRemoteSocketAddress() + ")";
+    }
+}
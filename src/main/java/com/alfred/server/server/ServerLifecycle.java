@@ -0,0 +1,121 @@
+package com.alfred.server.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.gpio.Gpio;
+import com.alfred.server.metrics.MetricsEndpoint;
+import com.alfred.server.utils.Config;
+import com.alfred.server.utils.Scheduler;
+
+/**
+ * This class manages the life of the running server. It starts the
+ * connection engine, parks the calling thread until the server is stopped,
+ * and installs a shutdown hook so the server stops cleanly when the JVM is
+ * asked to exit (for example with Ctrl-C or a service stop).
+ *
+ * Stopping the server happens in three steps, all within the configured
+ * deadline:
+ * <ol>
+ * <li>Stop accepting new connections</li>
+ * <li>Drain the outbound queues and close every client connection</li>
+ * <li>Deactivate every plugin created by Config.initialize</li>
+ * </ol>
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class ServerLifecycle {
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    private final ConnectionEngine engine;
+    private final long timeoutMillis;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicBoolean stopping = new AtomicBoolean(false);
+    private final ConnectionMonitor monitor = ConnectionMonitor.create();
+    private static final Logger log = LoggerFactory.getLogger(ServerLifecycle.class);
+
+    /**
+     * Constructor order is engine, shutdown timeout
+     *
+     * @param engine
+     *            The engine that accepts client connections
+     * @param timeoutMillis
+     *            The deadline for a clean shutdown
+     */
+    public ServerLifecycle(ConnectionEngine engine, long timeoutMillis) {
+        this.engine = engine;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Method to start the connection engine and install the shutdown hook
+     */
+    public void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "alfred-shutdown"));
+        new Thread(engine, "alfred-accept").start();
+        monitor.start();
+    }
+
+    /**
+     * Method to park the calling thread until the server has stopped
+     *
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public void awaitShutdown() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Method to stop the server. The shutdown steps run on their own thread;
+     * if they do not finish before the deadline the server stops anyway.
+     * Calling stop more than once has no effect
+     */
+    public void stop() {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        log.info("Stopping Alfred Server");
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        Thread steps = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                monitor.stop();
+                // the engine serves the connections while they drain
+                Server.closeConnections(Math.max(0, deadline - System.currentTimeMillis()));
+                engine.shutdown();
+                // clients that connected while the others drained
+                Server.closeConnections(0);
+                Config.stopWatchingDevices();
+                Config.deactivatePlugins();
+                Gpio.shutdown();
+                Scheduler.cancelAll();
+                Config.closeJournal();
+                Server.stopEmailDispatcher();
+                MetricsEndpoint.stop();
+            }
+        }, "alfred-stop");
+        steps.setDaemon(true);
+        steps.start();
+        try {
+            steps.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (steps.isAlive()) {
+            log.error("Shutdown did not finish within " + timeoutMillis + " ms");
+        } else {
+            log.info("Alfred Server stopped");
+        }
+        stopped.countDown();
+    }
+}
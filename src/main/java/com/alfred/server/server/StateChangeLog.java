@@ -0,0 +1,147 @@
+package com.alfred.server.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+
+/**
+ * Bounded in-memory log of the state changes sent to clients. Every change
+ * gets a version number one higher than the previous change, so a client that
+ * reconnects can say which version it saw last and get only the changes since
+ * then instead of a snapshot of every device.
+ *
+ * The log keeps the latest changes only. A client whose version is older than
+ * the oldest change in the log (or from an earlier run of the server) has to
+ * be sent a full snapshot instead.
+ *
+ * Versions start at the server start time in milliseconds times 1000, so they
+ * keep increasing across restarts and a version from an earlier run is never
+ * mistaken for a recent one.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class StateChangeLog {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final StateDeviceMessage[] changes;
+    private final long firstVersion;
+    private long version;
+    private int count = 0;
+
+    /**
+     * @param capacity The maximum number of changes kept in the log
+     */
+    public StateChangeLog(int capacity) {
+        this(capacity, System.currentTimeMillis() * 1000);
+    }
+
+    /**
+     * @param capacity The maximum number of changes kept in the log
+     * @param firstVersion The version of the first change
+     */
+    public StateChangeLog(int capacity, long firstVersion) {
+        this.changes = new StateDeviceMessage[Math.max(1, capacity)];
+        this.firstVersion = firstVersion;
+        this.version = firstVersion - 1;
+    }
+
+    /**
+     * Method to record a state change. Image data is not kept, a resuming
+     * client only needs the state
+     *
+     * @param msg The state message sent to clients
+     * @return The version of the change
+     */
+    public synchronized long append(StateDeviceMessage msg) {
+        if (msg.hasData()) {
+            msg = msg.toBuilder().clearData().build();
+        }
+        version++;
+        changes[(int) ((version - firstVersion) % changes.length)] = msg;
+        count = Math.min(count + 1, changes.length);
+        return version;
+    }
+
+    /**
+     * @return The version of the latest change
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Method to get the changes made after a given version. Only the latest
+     * change of each device is returned, in the order the devices last
+     * changed
+     *
+     * @param since The last version the client saw
+     * @return The changes, empty if the client is up to date, or null if the
+     *         log does not go back far enough and a snapshot is needed
+     */
+    public synchronized List<StateDeviceMessage> since(long since) {
+        Changes changes = changesSince(since);
+        return changes != null ? changes.getMessages() : null;
+    }
+
+    /**
+     * Method to get the changes made after a given version together with the
+     * version they bring the client up to. Both are read under one lock, so
+     * a change made at the same time is never left out of the messages but
+     * counted in the version
+     *
+     * @param since The last version the client saw
+     * @return The changes, or null if the log does not go back far enough and
+     *         a snapshot is needed
+     */
+    public synchronized Changes changesSince(long since) {
+        long oldest = version - count + 1;
+        if (since < oldest - 1 || since > version) {
+            return null;
+        }
+        if (since == version) {
+            return new Changes(Collections.<StateDeviceMessage>emptyList(), version);
+        }
+        Map<String, StateDeviceMessage> latest = new LinkedHashMap<>();
+        for (long v = since + 1; v <= version; v++) {
+            StateDeviceMessage msg = changes[(int) ((v - firstVersion) % changes.length)];
+            latest.remove(msg.getId());
+            latest.put(msg.getId(), msg);
+        }
+        return new Changes(new ArrayList<>(latest.values()), version);
+    }
+
+    /**
+     * The latest change of each device since a version, and the version of
+     * the last change
+     */
+    public static class Changes {
+        private final List<StateDeviceMessage> messages;
+        private final long version;
+
+        Changes(List<StateDeviceMessage> messages, long version) {
+            this.messages = messages;
+            this.version = version;
+        }
+
+        /**
+         * @return The latest change of each device, in the order the devices
+         *         last changed
+         */
+        public List<StateDeviceMessage> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return The version the changes bring the client up to
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+}
@@ -1,11 +1,27 @@
 package com.alfred.server.utils;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
@@ -18,6 +34,8 @@ import org.slf4j.LoggerFactory;
 
 import com.alfred.common.datamodel.StateDevice;
 import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
 import com.alfred.server.plugins.DevicePlugin;
 import com.alfred.server.plugins.PluginFactory;
 import com.alfred.server.plugins.ServerConnectionPlugin;
@@ -34,12 +52,61 @@ public class Config {
     private static final Logger log = LoggerFactory.getLogger(Config.class);
     
     // convenient constants for getting property keys
-    public static final String EMAIL_USERNAME = "mail.username";
-    public static final String EMAIL_TOKEN    = "mail.token";
-    public static final String HOST_ADDRESS   = "alfred.hostaddress";
-    public static final String HOST_PORT      = "alfred.hostport";
-    public static final String IMAGE_PATH     = "alfred.imagepath";
-    public static final String EMAIL_CLIENTS  = "alfred.emailclients";
+    public static final String EMAIL_USERNAME     = "mail.username";
+    public static final String EMAIL_TOKEN        = "mail.token";
+    public static final String HOST_ADDRESS       = "alfred.hostaddress";
+    public static final String HOST_PORT          = "alfred.hostport";
+    public static final String IMAGE_PATH         = "alfred.imagepath";
+    public static final String EMAIL_CLIENTS      = "alfred.emailclients";
+    public static final String NETWORK_ENGINE     = "alfred.network.engine";
+    public static final String IO_THREADS         = "alfred.network.iothreads";
+    public static final String QUEUE_SIZE         = "alfred.network.queuesize";
+    public static final String OVERFLOW_POLICY    = "alfred.network.overflow";
+    public static final String OVERFLOW_TIMEOUT   = "alfred.network.overflowtimeout";
+    public static final String CONFLATE           = "alfred.network.conflate";
+    public static final String IMAGE_POLICY       = "alfred.network.imagepolicy";
+    public static final String CHUNK_SIZE         = "alfred.network.chunksize";
+    public static final String CHANGELOG_SIZE     = "alfred.network.changelog";
+    public static final String RESUME_GRACE       = "alfred.network.resumegrace";
+    public static final String HEARTBEAT          = "alfred.network.heartbeat";
+    public static final String IDLE_TIMEOUT       = "alfred.network.idletimeout";
+    public static final String WRITE_TIMEOUT      = "alfred.network.writetimeout";
+    public static final String KEEPALIVE          = "alfred.network.keepalive";
+    public static final String TCP_NODELAY        = "alfred.network.nodelay";
+    public static final String FLUSH_WINDOW       = "alfred.network.flushwindow";
+    public static final String IMAGE_SEGMENT_SIZE = "alfred.image.segmentsize";
+    public static final String IMAGE_MAX_SIZE     = "alfred.image.maxsize";
+    public static final String IMAGE_MAX_AGE      = "alfred.image.maxage";
+    public static final String JOURNAL_PATH       = "alfred.journalpath";
+    public static final String JOURNAL_FLUSH      = "alfred.journal.flushinterval";
+    public static final String SHUTDOWN_TIMEOUT   = "alfred.shutdowntimeout";
+    public static final String EMAIL_QUEUE_SIZE   = "alfred.email.queuesize";
+    public static final String EMAIL_ATTEMPTS     = "alfred.email.attempts";
+    public static final String EMAIL_RETRY_DELAY  = "alfred.email.retrydelay";
+    public static final String IMAGE_BROADCAST    = "alfred.image.broadcast";
+    public static final String THUMBNAIL_WIDTH    = "alfred.image.thumbnailwidth";
+    public static final String METRICS_PORT       = "alfred.metrics.port";
+    public static final String METRICS_ADDRESS    = "alfred.metrics.address";
+    public static final String GPIO_BACKEND       = "alfred.gpio.backend";
+    public static final String STARTUP_THREADS    = "alfred.startup.threads";
+    public static final String DEVICES_RELOAD     = "alfred.devices.reload";
+
+    public static final int DEFAULT_STARTUP_THREADS = 4;
+
+    // plugins created by initialize, so they can be deactivated at shutdown
+    private static final List<DevicePlugin> plugins = new CopyOnWriteArrayList<>();
+
+    // the running plugin and configuration of every device by id, so a
+    // reload only restarts the devices that changed. Guarded by the Config
+    // class lock
+    private static final Map<String, DevicePlugin> devicePlugins = new LinkedHashMap<>();
+    private static final Map<String, JSONObject> deviceConfigs = new HashMap<>();
+
+    // watcher of the device file, null if reloading is off
+    private static DeviceFileWatcher deviceWatcher = null;
+
+    // journal of device states, null if no journal path is configured
+    private static StateJournal journal = null;
 
 
     /**
@@ -78,30 +145,326 @@ public class Config {
     /**
      * This static method initializes the devices and plugins for Alfred to manage.
      * The devices are expected in JSON format as an array of devices. An
-     * example can be found in the cfg directory at the root of the project
+     * example can be found in the cfg directory at the root of the project.
+     * 
+     * Every device is loaded before any plugin starts, then the plugins are
+     * activated in parallel ("alfred.startup.threads" at a time), since most
+     * of their activation is spent waiting on the GPIO pins
      * 
      * @param path
      *            The path to the json configuration file
      */
-    public static void initialize(String path) {
+    public static synchronized void initialize(String path) {
         
         JSONArray deviceArray = parseDeviceFile(path);
+
+        // restore the last known device states before the plugins start
+        Map<String, StateDeviceMessage> restored = openJournal();
         
+        List<DevicePlugin> created = new ArrayList<>();
         for(int i = 0; i < deviceArray.length(); i++) {
             JSONObject obj = deviceArray.getJSONObject(i);
 
             // create a state device from the json object
             JSONObject jsonStateDevice = obj.getJSONObject("statedevice");
-            loadDevice(jsonStateDevice);
+            String id = jsonStateDevice.getString("id");
+            loadDevice(jsonStateDevice, restored.get(id));
 
-            // Create and activate plugins
-            log.info("Creating plugin for device " + jsonStateDevice.getString("id"));
+            // Create plugins
+            log.info("Creating plugin for device " + id);
             DevicePlugin plugin = PluginFactory.getPlugin(obj);
-            plugin.activate();
+            created.add(plugin);
+            devicePlugins.put(id, plugin);
+            deviceConfigs.put(id, obj);
         }
 
         // additional plugin(s)
-        new ServerConnectionPlugin().activate();
+        created.add(new ServerConnectionPlugin());
+        StartupTimer.phaseDone("loading " + deviceArray.length() + " devices");
+
+        activatePlugins(created, (int) Server.getLongProperty(STARTUP_THREADS, DEFAULT_STARTUP_THREADS));
+        StartupTimer.phaseDone("activating " + created.size() + " plugins");
+    }
+
+    /**
+     * Helper method to activate plugins on a bounded pool of threads and wait
+     * for all of them. Plugins that started are registered for
+     * deactivatePlugins in the order they were created, even if another
+     * plugin failed
+     * 
+     * @param created
+     *            The plugins to activate
+     * @param threads
+     *            The most plugins activated at the same time
+     * @throws IllegalStateException if a plugin failed to activate
+     */
+    private static void activatePlugins(List<DevicePlugin> created, int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, created.size())),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "alfred-startup-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        List<Future<?>> activations = new ArrayList<>();
+        for(final DevicePlugin plugin : created) {
+            activations.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    plugin.activate();
+                    log.info("Activated plugin " + plugin.getClass().getSimpleName() + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                }
+            }));
+        }
+        pool.shutdown();
+
+        IllegalStateException failure = null;
+        for(int i = 0; i < created.size(); i++) {
+            DevicePlugin plugin = created.get(i);
+            try {
+                activations.get(i).get();
+                plugins.add(plugin);
+            } catch (ExecutionException e) {
+                log.error("Activating plugin " + plugin.getClass().getSimpleName() + " failed", e.getCause());
+                if(failure == null) {
+                    failure = new IllegalStateException("Activating plugin "
+                            + plugin.getClass().getSimpleName() + " failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                throw new IllegalStateException("Interrupted while activating plugins", e);
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Helper method to open the state journal, if a journal path is
+     * configured, and register it for state updates
+     * 
+     * @return The last known state of each journaled device, by id
+     */
+    private static Map<String, StateDeviceMessage> openJournal() {
+        String journalPath = Server.getProperty(JOURNAL_PATH);
+        if(journalPath == null || journalPath.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        journal = new StateJournal(new File(journalPath.trim()), StateJournal.DEFAULT_SIZE,
+                Server.getLongProperty(JOURNAL_FLUSH, StateJournal.DEFAULT_FLUSH_INTERVAL));
+        Map<String, StateDeviceMessage> restored = journal.restore();
+        try {
+            journal.start();
+            Server.addDeviceHandler(journal);
+        } catch (IOException e) {
+            log.error("Unable to open state journal, device states will not be saved", e);
+            journal = null;
+        }
+        return restored;
+    }
+
+    /**
+     * This method writes outstanding state changes and closes the state
+     * journal. It is called when the server is shutting down
+     */
+    public static void closeJournal() {
+        if(journal != null) {
+            Server.removeDeviceHandler(journal);
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * This method reloads the device file while the server runs. The new
+     * device list is compared with the running one by device id, and only the
+     * devices that were added, removed or changed are touched: the plugin of
+     * a removed or changed device is deactivated, and a plugin is created and
+     * activated for every added or changed device. A changed device keeps its
+     * current state unless its type changed. Every other device, and every
+     * client connection, is left alone.
+     * 
+     * If the file cannot be parsed the running devices are kept. A removed
+     * device stops working at once but stays in the device list sent to
+     * clients until the server is restarted
+     * 
+     * @param path
+     *            The path to the json configuration file
+     * @return The number of devices that were added, removed or changed
+     */
+    public static synchronized int reload(String path) {
+        Map<String, JSONObject> updated = new LinkedHashMap<>();
+        try {
+            JSONArray deviceArray = parseDeviceFile(path);
+            if(deviceArray == null) {
+                log.error("Unable to read " + path + ", keeping the running devices");
+                return 0;
+            }
+            for(int i = 0; i < deviceArray.length(); i++) {
+                JSONObject obj = deviceArray.getJSONObject(i);
+                String id = obj.getJSONObject("statedevice").getString("id");
+                if(updated.put(id, obj) != null) {
+                    log.error("Device " + id + " is listed twice in " + path + ", keeping the running devices");
+                    return 0;
+                }
+            }
+        } catch (JSONException e) {
+            log.error("Unable to parse " + path + ", keeping the running devices", e);
+            return 0;
+        }
+
+        // devices whose plugin has to stop: removed or changed
+        Set<String> stopped = new LinkedHashSet<>();
+        for(Map.Entry<String, DevicePlugin> running : devicePlugins.entrySet()) {
+            JSONObject obj = updated.get(running.getKey());
+            if(obj == null || !obj.similar(deviceConfigs.get(running.getKey()))) {
+                stopped.add(running.getKey());
+            }
+        }
+        // devices that need a new plugin: added or changed
+        Set<String> started = new LinkedHashSet<>();
+        for(String id : updated.keySet()) {
+            if(!devicePlugins.containsKey(id) || stopped.contains(id)) {
+                started.add(id);
+            }
+        }
+        Set<String> changes = new LinkedHashSet<>(stopped);
+        changes.addAll(started);
+        if(changes.isEmpty()) {
+            log.info("Reloaded " + path + ", no devices changed");
+            return 0;
+        }
+
+        for(String id : stopped) {
+            DevicePlugin plugin = devicePlugins.remove(id);
+            deviceConfigs.remove(id);
+            plugins.remove(plugin);
+            deactivate(plugin);
+            if(!updated.containsKey(id)) {
+                log.info("Device " + id + " removed, it is listed for clients until the server restarts");
+            }
+        }
+
+        Map<String, DevicePlugin> created = new LinkedHashMap<>();
+        for(String id : started) {
+            JSONObject obj = updated.get(id);
+            try {
+                loadDevice(obj.getJSONObject("statedevice"), currentState(id));
+                log.info("Creating plugin for device " + id);
+                created.put(id, PluginFactory.getPlugin(obj));
+            } catch (RuntimeException e) {
+                log.error("Creating plugin for device " + id + " failed", e);
+            }
+        }
+        try {
+            activatePlugins(new ArrayList<>(created.values()),
+                    (int) Server.getLongProperty(STARTUP_THREADS, DEFAULT_STARTUP_THREADS));
+        } catch (IllegalStateException e) {
+            // logged for each plugin, the failed devices are retried on the next reload
+        }
+        for(Map.Entry<String, DevicePlugin> entry : created.entrySet()) {
+            if(plugins.contains(entry.getValue())) {
+                devicePlugins.put(entry.getKey(), entry.getValue());
+                deviceConfigs.put(entry.getKey(), updated.get(entry.getKey()));
+            }
+        }
+        log.info("Reloaded " + path + ", restarted devices " + changes);
+        return changes.size();
+    }
+
+    /**
+     * This method starts watching the device file, and reloads it after it
+     * changes. It does nothing if "alfred.devices.reload" is false
+     * 
+     * @param path
+     *            The path to the json configuration file
+     */
+    public static synchronized void watchDevices(final String path) {
+        String enabled = Server.getProperties() != null ? Server.getProperty(DEVICES_RELOAD) : null;
+        if(deviceWatcher != null || (enabled != null && "false".equalsIgnoreCase(enabled.trim()))) {
+            return;
+        }
+        deviceWatcher = new DeviceFileWatcher(path, DeviceFileWatcher.DEFAULT_DELAY, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reload(path);
+                } catch (Exception e) {
+                    log.error("Reloading " + path + " failed", e);
+                }
+            }
+        });
+        try {
+            deviceWatcher.start();
+        } catch (IOException e) {
+            log.error("Unable to watch " + path + ", device changes need a restart", e);
+            deviceWatcher = null;
+        }
+    }
+
+    /**
+     * This method stops watching the device file. It is called when the
+     * server is shutting down
+     */
+    public static synchronized void stopWatchingDevices() {
+        if(deviceWatcher != null) {
+            deviceWatcher.stop();
+            deviceWatcher = null;
+        }
+    }
+
+    /**
+     * Helper method to get the current state of a device as a message, so a
+     * changed device can be loaded again without losing it
+     * 
+     * @param id The id of the device
+     * @return The current state, or null if the device is not loaded
+     */
+    private static StateDeviceMessage currentState(String id) {
+        StateDevice device = StateDeviceManager.getDevice(id);
+        if(device == null) {
+            return null;
+        }
+        return StateDeviceMessage.newBuilder()
+                .setId(device.getId())
+                .setName(device.getName())
+                .setType(device.getType())
+                .setState(device.getState())
+                .build();
+    }
+
+    /**
+     * Helper method to deactivate a plugin, logging any failure
+     * 
+     * @param plugin The plugin to deactivate
+     */
+    private static void deactivate(DevicePlugin plugin) {
+        try {
+            log.info("Deactivating plugin " + plugin.getClass().getSimpleName());
+            plugin.deactivate();
+        } catch (Exception e) {
+            log.error("Deactivating plugin failed", e);
+        }
+    }
+
+    /**
+     * This method deactivates every plugin created by the initialize method.
+     * It is called when the server is shutting down
+     */
+    public static synchronized void deactivatePlugins() {
+        for(DevicePlugin plugin : plugins) {
+            deactivate(plugin);
+        }
+        plugins.clear();
+        devicePlugins.clear();
+        deviceConfigs.clear();
     }
     
     
@@ -113,10 +476,34 @@ public class Config {
      *            JSON representation of a State Device
      */
     public static void loadDevice(JSONObject obj) {
+        loadDevice(obj, null);
+    }
+
+    /**
+     * This device loader method creates a StateDevice instance from the input
+     * JSON Object, with the restored state if there is one, and registers the
+     * device with the StateDeviceManager. Doorbells always start with their
+     * configured state
+     * 
+     * @param obj
+     *            JSON representation of a State Device
+     * @param restored
+     *            The last known state of the device, or null
+     */
+    public static void loadDevice(JSONObject obj, StateDeviceMessage restored) {
         log.info("\nJSON Creating State Device from JSON:" + obj.toString());
         StateDevice device = null;
         try {
             device = new StateDevice(obj);
+            if(restored != null && device.getType() != Type.DOORBELL && restored.getType() == device.getType()) {
+                log.info("Restoring " + device.getId() + " to " + restored.getState());
+                device = new StateDevice(StateDeviceMessage.newBuilder()
+                        .setId(device.getId())
+                        .setName(device.getName())
+                        .setType(device.getType())
+                        .setState(restored.getState())
+                        .build());
+            }
         } catch (Exception e) {
             log.error("Couldn't create state device from json object", e);
         }
@@ -0,0 +1,234 @@
+package com.alfred.server.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.server.metrics.Counter;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
+
+/**
+ * Debounce stage between a GPIO sensor listener and the StateDeviceManager.
+ * A bouncing button or reed switch fires a burst of pin edges for one real
+ * change, and every update sent to the StateDeviceManager is broadcast to
+ * every client (and starts a webcam capture for a doorbell).
+ *
+ * There are two modes:
+ * <ul>
+ * <li><b>Leading edge:</b> the first update is applied at once and the
+ * updates in the window after it are dropped. Used for momentary inputs like
+ * the doorbell button, where the first press is what matters and should not
+ * be delayed</li>
+ * <li><b>Trailing edge:</b> updates are held until the input has been quiet
+ * for the window, and only the last one is applied. Used for level sensors
+ * like a garage door or wall switch, where the settled state is what
+ * matters</li>
+ * </ul>
+ * In both modes an update that does not change the device state is dropped.
+ * The Scheduler only times the trailing edge window, the held update is then
+ * applied on a separate "alfred-debounce" thread, since applying it
+ * broadcasts to every client and would hold up every other scheduled task.
+ *
+ * The window is set per device with the "debounce" key (milliseconds) in the
+ * devices file. The default is one second for a doorbell button and 50 ms for
+ * other sensors. A window of zero only drops the updates that do not change
+ * the state.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class Debouncer {
+
+    public static final long DEFAULT_WINDOW = 50;
+    public static final long DEFAULT_BUTTON_WINDOW = 1000;
+
+    private final String deviceId;
+    private final long window;
+    private final boolean leading;
+
+    // guarded by this
+    private long lastApplied = 0;
+    private State pending = null;
+    private long pendingSince = 0;
+    private int suppressed = 0;
+    private static final Counter edges = Metrics.counter("alfred_gpio_edges_total",
+            "Sensor updates read from GPIO pins");
+    private static final Counter suppressedEdges = Metrics.counter("alfred_gpio_suppressed_total",
+            "Sensor updates dropped by debouncing or because they did not change the state");
+    private static final Histogram updateTime = Metrics.histogram("alfred_gpio_update_seconds",
+            "Time from a sensor edge to the end of the device state update, including the debounce wait");
+    private static final ExecutorService updater = createUpdater();
+    private static final Logger log = LoggerFactory.getLogger(Debouncer.class);
+
+    /**
+     * Constructor order is device id, window, mode
+     *
+     * @param deviceId
+     *            The id of the device the sensor updates
+     * @param window
+     *            The debounce window in milliseconds
+     * @param leading
+     *            True to apply the first update of a burst, false to apply
+     *            the last update once the input is quiet
+     */
+    public Debouncer(String deviceId, long window, boolean leading) {
+        this.deviceId = deviceId;
+        this.window = Math.max(0, window);
+        this.leading = leading;
+    }
+
+    /**
+     * Method to submit a new state read from the sensor. Called on the GPIO
+     * listener thread, never blocks
+     *
+     * @param state The new state of the device
+     */
+    public void update(State state) {
+        final long edge = System.nanoTime();
+        edges.increment();
+        if (window == 0) {
+            apply(state, edge);
+            return;
+        }
+        if (leading) {
+            long now = currentTimeMillis();
+            synchronized (this) {
+                if (now - lastApplied < window) {
+                    suppressed++;
+                    suppressedEdges.increment();
+                    log.debug("Dropping " + state + " for " + deviceId + " inside the debounce window");
+                    return;
+                }
+                lastApplied = now;
+            }
+            apply(state, edge);
+        } else {
+            synchronized (this) {
+                if (pending != null) {
+                    suppressed++;
+                    suppressedEdges.increment();
+                } else {
+                    pendingSince = edge;
+                }
+                pending = state;
+            }
+            // every edge pushes the update back until the input is quiet
+            Scheduler.schedule(key(), new Runnable() {
+                @Override
+                public void run() {
+                    updater.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                applyPending();
+                            } catch (RuntimeException e) {
+                                log.error("Applying the debounced state of " + deviceId + " failed", e);
+                            }
+                        }
+                    });
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Method to drop a held update. Called when the plugin is deactivated
+     */
+    public void cancel() {
+        Scheduler.cancel(key());
+        synchronized (this) {
+            pending = null;
+        }
+    }
+
+    /**
+     * @return The number of updates dropped so far, by the window or because
+     *         they did not change the state
+     */
+    public synchronized int getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * Helper method to get the scheduler key of the held update
+     */
+    private String key() {
+        return "debounce:" + deviceId;
+    }
+
+    /**
+     * Helper method to apply the held update once the input is quiet. A
+     * cancel between the end of the window and this call drops the update
+     */
+    private void applyPending() {
+        State settled;
+        long since;
+        synchronized (this) {
+            settled = pending;
+            since = pendingSince;
+            pending = null;
+        }
+        if (settled != null) {
+            apply(settled, since);
+        }
+    }
+
+    /**
+     * Helper method to update the device unless it is already in the state
+     */
+    private void apply(State state, long edge) {
+        if (state == getState()) {
+            synchronized (this) {
+                suppressed++;
+            }
+            suppressedEdges.increment();
+            return;
+        }
+        setState(state);
+        updateTime.recordSince(edge);
+    }
+
+    /**
+     * @return The current time in milliseconds, used for the leading edge
+     *         window
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return The current state of the device, or null if it is unknown
+     */
+    protected State getState() {
+        StateDevice device = StateDeviceManager.getDevice(deviceId);
+        return device == null ? null : device.getState();
+    }
+
+    /**
+     * Method to apply a debounced state change
+     *
+     * @param state The new state of the device
+     */
+    protected void setState(State state) {
+        StateDeviceManager.updateStateDevice(deviceId, state);
+    }
+
+    private static ExecutorService createUpdater() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "alfred-debounce");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,161 @@
+package com.alfred.server.utils;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a single file (the device file) and runs a task after it changes.
+ * Editors often save a file in several steps (truncate, write, rename), so
+ * the task runs once the file has been quiet for the delay instead of once
+ * per change. The Scheduler only times the delay, the task itself runs on an
+ * "alfred-reload" thread since it can take a while (reactivating plugins).
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class DeviceFileWatcher implements Runnable {
+
+    public static final long DEFAULT_DELAY = 500;
+
+    private final Path file;
+    private final long delayMillis;
+    private final Runnable task;
+    private final String taskKey;
+    private volatile WatchService watchService = null;
+    private volatile ExecutorService runner = null;
+    private static final Logger log = LoggerFactory.getLogger(DeviceFileWatcher.class);
+
+    /**
+     * Constructor order is path, delay, task
+     *
+     * @param path
+     *            The file to watch
+     * @param delayMillis
+     *            How long the file has to be quiet before the task runs
+     * @param task
+     *            The task to run after the file changed
+     */
+    public DeviceFileWatcher(String path, long delayMillis, Runnable task) {
+        this.file = Paths.get(path).toAbsolutePath();
+        this.delayMillis = delayMillis;
+        this.task = task;
+        this.taskKey = "file-changed:" + file;
+    }
+
+    /**
+     * Method to start watching the file on a daemon thread
+     *
+     * @throws IOException if the directory of the file cannot be watched
+     */
+    public synchronized void start() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        runner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "alfred-reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread thread = new Thread(this, "alfred-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Watching " + file + " for changes");
+    }
+
+    /**
+     * Method to stop watching the file. A change that is waiting for the
+     * delay, or for a task that is still running, is dropped
+     */
+    public synchronized void stop() {
+        if (watchService == null) {
+            return;
+        }
+        Scheduler.cancel(taskKey);
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.error("Closing file watcher failed", e);
+        }
+        watchService = null;
+        // the running task is left to finish, interrupting it could leave a
+        // plugin half activated
+        runner.shutdown();
+        runner = null;
+    }
+
+    @Override
+    public void run() {
+        WatchService service = watchService;
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    // on overflow the events are lost, so assume the file changed
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    Scheduler.schedule(taskKey, new Runnable() {
+                        @Override
+                        public void run() {
+                            runTask();
+                        }
+                    }, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stopped watching " + file);
+    }
+
+    /**
+     * Helper method to hand the task over to the reload thread. Called on
+     * the Scheduler thread once the file has been quiet for the delay
+     */
+    private synchronized void runTask() {
+        if (runner == null) {
+            // stopped while the task was due
+            return;
+        }
+        final ExecutorService current = runner;
+        current.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (current.isShutdown()) {
+                    // queued behind a running task when the watcher stopped
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Handling the change of " + file + " failed", e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,393 @@
+package com.alfred.server.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Store for visitor images. Instead of one file per image, images are
+ * appended to large segment files, so saving an image is a sequential write
+ * to an open file rather than a new file and directory entry on the SD card.
+ *
+ * Each segment "images-{time}.seg" has an index "images-{time}.idx" of fixed
+ * size entries (capture time, offset and length of the image), written after
+ * the image. The indexes are small and are read at startup into one time
+ * ordered index used for lookups by time range. An index entry is only
+ * written once its image is complete, so a crash while saving loses at most
+ * the image being saved.
+ *
+ * Retention works on whole segments: the oldest segments are deleted while
+ * the store is larger than its maximum size or while their newest image is
+ * older than the maximum age. The segment being written is never deleted.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class ImageStore {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final String PREFIX = "images-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxSize;
+    private final long maxAge;
+
+    // every stored image by capture time, and the segments by start time
+    private final NavigableMap<Long, StoredImage> index = new TreeMap<>();
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private Segment current = null;
+    private static final Logger log = LoggerFactory.getLogger(ImageStore.class);
+
+    /**
+     * Constructor order is directory, segment size, maximum size, maximum age
+     *
+     * @param directory
+     *            The directory of the segment files
+     * @param segmentSize
+     *            The size in bytes at which a new segment is started
+     * @param maxSize
+     *            The maximum size in bytes of all segments
+     * @param maxAge
+     *            The age in milliseconds after which images are deleted
+     */
+    public ImageStore(File directory, long segmentSize, long maxSize, long maxAge) {
+        this.directory = directory;
+        // offsets in the index are ints
+        this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE / 2);
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Method to read the segment indexes in the store directory. Must be
+     * called before the store is used
+     *
+     * @throws IOException if the directory cannot be read
+     */
+    public synchronized void open() throws IOException {
+        long start = System.currentTimeMillis();
+        directory.mkdirs();
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                long time = Long.parseLong(name.substring(PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(time);
+                segment.load();
+                segments.put(time, segment);
+            } catch (NumberFormatException e) {
+                log.error("Ignoring unexpected file " + file);
+            }
+        }
+        enforceRetention(System.currentTimeMillis());
+        log.info("Opened image store with " + index.size() + " images in " + segments.size() + " segments in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Method to append an image to the store
+     *
+     * @param time The capture time of the image in milliseconds
+     * @param jpeg The encoded image
+     * @throws IOException if the image could not be written
+     */
+    public synchronized void append(long time, ByteString jpeg) throws IOException {
+        // images are indexed by time, keep the times unique
+        while (index.containsKey(time)) {
+            time++;
+        }
+        if (current == null && !segments.isEmpty() && segments.lastEntry().getValue().size < segmentSize) {
+            // carry on with the last segment from before the restart
+            current = segments.lastEntry().getValue();
+            current.openForAppend();
+        } else if (current == null || current.size >= segmentSize) {
+            roll(time);
+        }
+        current.append(time, jpeg);
+        enforceRetention(System.currentTimeMillis());
+    }
+
+    /**
+     * Method to find the images captured in a time range
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, inclusive
+     * @return The images in capture time order
+     */
+    public synchronized List<StoredImage> find(long from, long to) {
+        if (from > to) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(index.subMap(from, true, to, true).values());
+    }
+
+    /**
+     * Method to get the image captured at a given time
+     *
+     * @param time The capture time of the image
+     * @return The image, or null if it is not in the store
+     */
+    public synchronized StoredImage get(long time) {
+        return index.get(time);
+    }
+
+    /**
+     * Method to read the bytes of a stored image
+     *
+     * @param image An image returned by find or get
+     * @return The encoded image, or null if it has been deleted
+     * @throws IOException if the image could not be read
+     */
+    public synchronized ByteString read(StoredImage image) throws IOException {
+        Segment segment = segments.get(image.segment);
+        if (segment == null || index.get(image.time) != image) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(image.length);
+        try (FileChannel channel = FileChannel.open(segment.data.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, image.offset + buffer.position()) < 0) {
+                    throw new IOException("Image at " + image.time + " is truncated");
+                }
+            }
+        }
+        buffer.flip();
+        return ByteString.copyFrom(buffer);
+    }
+
+    /**
+     * @return The total size in bytes of all segments
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Method to close the segment being written
+     */
+    public synchronized void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Helper method to start a new segment
+     */
+    private void roll(long time) throws IOException {
+        if (current != null) {
+            current.close();
+        }
+        // keep segment names unique if the clock went backwards
+        if (!segments.isEmpty() && time <= segments.lastKey()) {
+            time = segments.lastKey() + 1;
+        }
+        current = new Segment(time);
+        current.openForAppend();
+        segments.put(time, current);
+        log.info("Started image segment " + current.data.getName());
+    }
+
+    /**
+     * Helper method to delete the oldest segments until the store is within
+     * its size and age limits
+     */
+    private void enforceRetention(long now) {
+        long size = getSize();
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            Segment segment = oldest.getValue();
+            if (segment == current || (size <= maxSize && segment.newest >= now - maxAge)) {
+                break;
+            }
+            size -= segment.size;
+            segments.remove(oldest.getKey());
+            for (StoredImage image : segment.images) {
+                if (index.get(image.time) == image) {
+                    index.remove(image.time);
+                }
+            }
+            segment.delete();
+            log.info("Deleted image segment " + segment.data.getName() + " with " + segment.images.size()
+                    + " images");
+        }
+    }
+
+    /**
+     * An image in the store
+     */
+    public static class StoredImage {
+        private final long time;
+        private final long segment;
+        private final long offset;
+        private final int length;
+
+        StoredImage(long time, long segment, long offset, int length) {
+            this.time = time;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return The capture time of the image in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The size of the encoded image in bytes
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * A segment file and its index
+     */
+    private class Segment {
+        final long start;
+        final File data;
+        final File indexFile;
+        final List<StoredImage> images = new ArrayList<>();
+        FileChannel dataChannel = null;
+        FileChannel indexChannel = null;
+        long size = 0;
+        long newest = 0;
+
+        Segment(long start) {
+            this.start = start;
+            this.data = new File(directory, PREFIX + start + SEGMENT_SUFFIX);
+            this.indexFile = new File(directory, PREFIX + start + INDEX_SUFFIX);
+        }
+
+        void load() throws IOException {
+            size = data.length();
+            if (!indexFile.exists()) {
+                return;
+            }
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+            // a torn last entry is ignored
+            while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+                long time = entries.getLong();
+                int offset = entries.getInt();
+                int length = entries.getInt();
+                if ((long) offset + length > size) {
+                    break;
+                }
+                add(new StoredImage(time, start, offset, length));
+            }
+        }
+
+        void openForAppend() throws IOException {
+            dataChannel = FileChannel.open(data.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            size = dataChannel.size();
+        }
+
+        void append(long time, ByteString jpeg) throws IOException {
+            // APPEND mode writes at the real end of the file, so take the
+            // offset from there rather than from the cached size
+            long offset = dataChannel.size();
+            long indexSize = indexChannel.size();
+            try {
+                jpeg.writeTo(Channels.newOutputStream(dataChannel));
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                entry.putLong(time).putInt((int) offset).putInt(jpeg.size());
+                entry.flip();
+                while (entry.hasRemaining()) {
+                    indexChannel.write(entry);
+                }
+            } catch (IOException e) {
+                // don't leave part of the image or its entry behind
+                truncate(dataChannel, data, offset);
+                truncate(indexChannel, indexFile, indexSize);
+                size = offset;
+                throw e;
+            }
+            size = offset + jpeg.size();
+            add(new StoredImage(time, start, offset, jpeg.size()));
+        }
+
+        void add(StoredImage image) {
+            images.add(image);
+            index.put(image.time, image);
+            newest = Math.max(newest, image.time);
+        }
+
+        void close() {
+            closeQuietly(dataChannel);
+            closeQuietly(indexChannel);
+            dataChannel = null;
+            indexChannel = null;
+        }
+
+        void delete() {
+            close();
+            for (File file : Arrays.asList(data, indexFile)) {
+                if (file.exists() && !file.delete()) {
+                    log.error("Unable to delete " + file);
+                }
+            }
+        }
+
+        private void truncate(FileChannel channel, File file, long length) {
+            try {
+                channel.truncate(length);
+            } catch (IOException e) {
+                log.error("Truncating " + file.getName() + " after a failed write failed", e);
+            }
+        }
+
+        private void closeQuietly(FileChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.error("Closing " + data.getName() + " failed", e);
+                }
+            }
+        }
+    }
+}
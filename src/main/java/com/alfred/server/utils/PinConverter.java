@@ -13,19 +13,65 @@ import com.pi4j.io.gpio.RaspiPin;
 public class PinConverter {
     
     /**
-     * Raspberry Pi Model B and B+ pin converstion tool
+     * Raspberry Pi Model B and B+ pin converstion tool. Pin numbers are the
+     * physical header pins (1 - 40), Pi4J uses the wiringPi numbering
      * 
      * @author Kevin Kanzelmeyer
      *
      */
     public static class ModelB {
+
+        // wiringPi number of every physical header pin, -1 for power, ground
+        // and the ID EEPROM pins (27 and 28)
+        private static final int[] WIRING_PI = {
+            -1,                 // there is no pin 0
+            -1, -1,             //  1 3.3V,    2 5V
+             8, -1,             //  3 GPIO 2,  4 5V
+             9, -1,             //  5 GPIO 3,  6 GND
+             7, 15,             //  7 GPIO 4,  8 GPIO 14
+            -1, 16,             //  9 GND,    10 GPIO 15
+             0,  1,             // 11 GPIO 17, 12 GPIO 18
+             2, -1,             // 13 GPIO 27, 14 GND
+             3,  4,             // 15 GPIO 22, 16 GPIO 23
+            -1,  5,             // 17 3.3V,   18 GPIO 24
+            12, -1,             // 19 GPIO 10, 20 GND
+            13,  6,             // 21 GPIO 9,  22 GPIO 25
+            14, 10,             // 23 GPIO 11, 24 GPIO 8
+            -1, 11,             // 25 GND,    26 GPIO 7
+            -1, -1,             // 27 ID_SD,  28 ID_SC
+            21, -1,             // 29 GPIO 5,  30 GND
+            22, 26,             // 31 GPIO 6,  32 GPIO 12
+            23, -1,             // 33 GPIO 13, 34 GND
+            24, 27,             // 35 GPIO 19, 36 GPIO 16
+            25, 28,             // 37 GPIO 26, 38 GPIO 20
+            -1, 29              // 39 GND,    40 GPIO 21
+        };
+
+        private static final Pin[] PINS = {
+            RaspiPin.GPIO_00, RaspiPin.GPIO_01, RaspiPin.GPIO_02, RaspiPin.GPIO_03, RaspiPin.GPIO_04,
+            RaspiPin.GPIO_05, RaspiPin.GPIO_06, RaspiPin.GPIO_07, RaspiPin.GPIO_08, RaspiPin.GPIO_09,
+            RaspiPin.GPIO_10, RaspiPin.GPIO_11, RaspiPin.GPIO_12, RaspiPin.GPIO_13, RaspiPin.GPIO_14,
+            RaspiPin.GPIO_15, RaspiPin.GPIO_16, RaspiPin.GPIO_17, RaspiPin.GPIO_18, RaspiPin.GPIO_19,
+            RaspiPin.GPIO_20, RaspiPin.GPIO_21, RaspiPin.GPIO_22, RaspiPin.GPIO_23, RaspiPin.GPIO_24,
+            RaspiPin.GPIO_25, RaspiPin.GPIO_26, RaspiPin.GPIO_27, RaspiPin.GPIO_28, RaspiPin.GPIO_29
+        };
+
         public static Pin fromInt(Integer pin) {
-            switch(pin) {
-            case 3:  return (Pin) RaspiPin.GPIO_08;
-            case 12: return (Pin) RaspiPin.GPIO_01;
-            case 13: return (Pin) RaspiPin.GPIO_02;
-            default: return null;
+            int wiringPi = toWiringPi(pin);
+            return wiringPi >= 0 ? PINS[wiringPi] : null;
+        }
+
+        /**
+         * Method to convert a physical header pin to its wiringPi number
+         *
+         * @param pin The physical pin number
+         * @return The wiringPi number, or -1 if the pin is not a GPIO pin
+         */
+        public static int toWiringPi(Integer pin) {
+            if (pin == null || pin < 0 || pin >= WIRING_PI.length) {
+                return -1;
             }
+            return WIRING_PI[pin];
         }
     }
 }
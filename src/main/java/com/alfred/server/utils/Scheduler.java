@@ -0,0 +1,144 @@
+package com.alfred.server.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared scheduler for the delayed tasks of every plugin (doorbell resets,
+ * etc). All tasks run on one daemon thread instead of a Timer thread per
+ * task, so the tasks should be short.
+ *
+ * Tasks are scheduled under a key, and there is at most one pending task per
+ * key: scheduling a task cancels the pending task with the same key. This is
+ * what a reset timer needs, since a new activation should push the reset back
+ * instead of adding a second one.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class Scheduler {
+
+    private static final ScheduledThreadPoolExecutor executor = createExecutor();
+
+    // guarded by the Scheduler class lock
+    private static final Map<String, ScheduledFuture<?>> tasks = new HashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(Scheduler.class);
+
+    private Scheduler() { }
+
+    /**
+     * Method to schedule a task, replacing the pending task with the same key
+     *
+     * @param key
+     *            The key of the task, e.g. "reset:" + deviceId
+     * @param task
+     *            The task to run
+     * @param delay
+     *            The delay before the task runs
+     * @param unit
+     *            The unit of the delay
+     * @return True if a pending task with the same key was cancelled
+     */
+    public static synchronized boolean schedule(String key, Runnable task, long delay, TimeUnit unit) {
+        ScheduledFuture<?> previous = tasks.remove(key);
+        boolean replaced = previous != null && previous.cancel(false);
+        KeyedTask keyed = new KeyedTask(key, task);
+        keyed.future = executor.schedule(keyed, delay, unit);
+        tasks.put(key, keyed.future);
+        return replaced;
+    }
+
+    /**
+     * Method to cancel the pending task with the given key
+     *
+     * @param key The key the task was scheduled with
+     * @return True if a pending task was cancelled
+     */
+    public static synchronized boolean cancel(String key) {
+        ScheduledFuture<?> future = tasks.remove(key);
+        return future != null && future.cancel(false);
+    }
+
+    /**
+     * Method to check if a task is pending for a given key
+     *
+     * @param key The key the task was scheduled with
+     * @return True if a task with the key is waiting to run
+     */
+    public static synchronized boolean isPending(String key) {
+        return tasks.containsKey(key);
+    }
+
+    /**
+     * @return The number of tasks waiting to run
+     */
+    public static synchronized int getPendingCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Method to cancel every pending task. Called when the server is
+     * shutting down
+     */
+    public static synchronized void cancelAll() {
+        for (ScheduledFuture<?> future : tasks.values()) {
+            future.cancel(false);
+        }
+        tasks.clear();
+    }
+
+    /**
+     * Helper method to remove a task from the pending tasks once it starts
+     */
+    private static synchronized void started(KeyedTask task) {
+        if (tasks.get(task.key) == task.future) {
+            tasks.remove(task.key);
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "alfred-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // don't keep cancelled resets in the queue for minutes
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * A scheduled task and its key
+     */
+    private static class KeyedTask implements Runnable {
+        final String key;
+        final Runnable task;
+        ScheduledFuture<?> future;
+
+        KeyedTask(String key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            started(this);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // an exception would otherwise be swallowed by the executor
+                log.error("Scheduled task " + key + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.alfred.server.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.server.metrics.Gauge;
+import com.alfred.server.metrics.Metrics;
+
+/**
+ * Records how long each phase of the server startup takes (loading the
+ * configuration, activating the plugins, etc) so slow phases are easy to
+ * find on the Pi. Each phase is logged when it ends, and the whole startup is
+ * summarized once the server accepts connections. The time from JVM start to
+ * accepting connections is also exported as the alfred_startup_millis metric
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class StartupTimer {
+
+    // guarded by the StartupTimer class lock
+    private static final Map<String, Long> phases = new LinkedHashMap<>();
+    private static long phaseStart = jvmStartTime();
+    private static volatile long readyMillis = 0;
+    private static final Logger log = LoggerFactory.getLogger(StartupTimer.class);
+
+    static {
+        Metrics.gauge("alfred_startup_millis", "Milliseconds from JVM start to accepting connections", new Gauge() {
+            @Override
+            public long getValue() {
+                return readyMillis;
+            }
+        });
+    }
+
+    private StartupTimer() { }
+
+    /**
+     * Method to end a startup phase. The phase is timed from the end of the
+     * previous phase, or from the JVM start for the first phase
+     *
+     * @param phase The name of the phase that ended
+     * @return The duration of the phase in milliseconds
+     */
+    public static synchronized long phaseDone(String phase) {
+        long now = System.currentTimeMillis();
+        long millis = now - phaseStart;
+        phaseStart = now;
+        if (readyMillis == 0) {
+            phases.put(phase, millis);
+        }
+        log.info("Startup: " + phase + " took " + millis + " ms");
+        return millis;
+    }
+
+    /**
+     * Method to record that the server accepts connections. The first call
+     * logs the time of every phase, later calls (a restarted engine) are
+     * ignored
+     */
+    public static synchronized void ready() {
+        if (readyMillis != 0) {
+            return;
+        }
+        phaseDone("starting the connection engine");
+        readyMillis = Math.max(1, System.currentTimeMillis() - jvmStartTime());
+        StringBuilder summary = new StringBuilder("Accepting connections " + readyMillis + " ms after JVM start (");
+        String separator = "";
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            summary.append(separator).append(phase.getKey()).append(" ").append(phase.getValue()).append(" ms");
+            separator = ", ";
+        }
+        log.info(summary.append(")").toString());
+    }
+
+    /**
+     * @return The milliseconds from JVM start to accepting connections, or 0
+     *         if the server does not accept connections yet
+     */
+    public static long getReadyMillis() {
+        return readyMillis;
+    }
+
+    /**
+     * Helper method to get the time the JVM started, so the time to load the
+     * classes before main runs is counted too
+     */
+    private static long jvmStartTime() {
+        return ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+}
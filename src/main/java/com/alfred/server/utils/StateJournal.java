@@ -0,0 +1,325 @@
+package com.alfred.server.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * Journal of device state changes, so the server can restore the last known
+ * state of its devices after a restart instead of the default state from the
+ * device file.
+ *
+ * The journal has two files in the journal directory:
+ * <ul>
+ * <li><b>state.snapshot:</b> the state of every device when the journal was
+ * last compacted, as length delimited messages</li>
+ * <li><b>state.journal:</b> a fixed size, memory mapped file of the changes
+ * since the snapshot. Each record is its length, a CRC32 and the message, and
+ * a zero length marks the end. A record torn by a crash fails its CRC and
+ * ends the replay</li>
+ * </ul>
+ * The journal is registered as a StateDeviceHandler. Updates are only queued
+ * on the calling thread and written by a background thread, which forces the
+ * mapped file to disk at most once per flush interval to spare the SD card.
+ * When the journal file is full, and every ten minutes, the state is
+ * compacted into a new snapshot and the journal starts over.
+ *
+ * Doorbell states are not journaled, a doorbell should never come back
+ * active after a restart.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class StateJournal implements StateDeviceHandler, Runnable {
+
+    public static final int DEFAULT_SIZE = 65536;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    private static final long COMPACT_INTERVAL = 600000;
+    private static final int QUEUE_SIZE = 1024;
+    private static final String JOURNAL_FILE = "state.journal";
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+
+    private final File journalFile;
+    private final File snapshotFile;
+    private final int size;
+    private final long flushInterval;
+    private final BlockingQueue<StateDeviceMessage> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Map<String, StateDeviceMessage> latest = new LinkedHashMap<>();
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile file = null;
+    private MappedByteBuffer journal = null;
+    private volatile boolean running = false;
+    private Thread writer = null;
+    private static final Logger log = LoggerFactory.getLogger(StateJournal.class);
+
+    /**
+     * Constructor order is directory, journal size, flush interval
+     *
+     * @param directory
+     *            The directory of the journal files
+     * @param size
+     *            The size of the journal file in bytes
+     * @param flushInterval
+     *            The longest time in milliseconds a change waits before it is
+     *            forced to disk
+     */
+    public StateJournal(File directory, int size, long flushInterval) {
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+        this.size = Math.max(1024, size);
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Method to read the last known device states from the snapshot and the
+     * journal. Must be called before start
+     *
+     * @return The last known state message of each journaled device, by id
+     */
+    public synchronized Map<String, StateDeviceMessage> restore() {
+        long start = System.currentTimeMillis();
+        int records = 0;
+        if (snapshotFile.exists()) {
+            try (InputStream in = new FileInputStream(snapshotFile)) {
+                StateDeviceMessage msg;
+                while ((msg = StateDeviceMessage.parseDelimitedFrom(in)) != null) {
+                    latest.put(msg.getId(), msg);
+                }
+            } catch (IOException e) {
+                log.error("Unable to read state snapshot " + snapshotFile, e);
+            }
+        }
+        if (journalFile.exists()) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+                while (buffer.remaining() >= 8) {
+                    int length = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining() - 4) {
+                        break;
+                    }
+                    long checksum = buffer.getInt() & 0xFFFFFFFFL;
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    crc.reset();
+                    crc.update(bytes, 0, length);
+                    if (crc.getValue() != checksum) {
+                        log.info("Journal ends with a torn record, ignoring it");
+                        break;
+                    }
+                    StateDeviceMessage msg = StateDeviceMessage.parseFrom(bytes);
+                    latest.put(msg.getId(), msg);
+                    records++;
+                }
+            } catch (IOException e) {
+                log.error("Unable to read state journal " + journalFile, e);
+            }
+        }
+        log.info("Restored " + latest.size() + " device states (" + records + " journal records) in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return new LinkedHashMap<>(latest);
+    }
+
+    /**
+     * Method to open the journal file and start the writer thread. The
+     * restored state is compacted into a new snapshot first
+     *
+     * @throws IOException if the journal files cannot be written
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        journalFile.getParentFile().mkdirs();
+        file = new RandomAccessFile(journalFile, "rw");
+        file.setLength(size);
+        journal = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        journal.position(size);
+        compact();
+
+        running = true;
+        writer = new Thread(this, "alfred-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Method to stop the writer thread. Queued changes are written and the
+     * state is compacted before the journal file is closed
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = writer;
+            writer = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(flushInterval + 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                drain();
+                if (journal != null) {
+                    compact();
+                }
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                log.error("Closing state journal failed", e);
+            }
+            journal = null;
+            file = null;
+        }
+    }
+
+    @Override
+    public void onAddDevice(StateDevice device) { }
+
+    /**
+     * Queues the new state of the device. Never blocks, if the writer has
+     * fallen far behind the change is dropped and logged
+     */
+    @Override
+    public void onUpdateDevice(StateDevice device) {
+        if (device.getType() == Type.DOORBELL) {
+            return;
+        }
+        StateDeviceMessage msg = StateDeviceMessage.newBuilder()
+                .setId(device.getId())
+                .setName(device.getName())
+                .setType(device.getType())
+                .setState(device.getState())
+                .build();
+        if (!queue.offer(msg)) {
+            log.error("State journal queue full, dropping update for " + device.getId());
+        }
+    }
+
+    @Override
+    public void onRemoveDevice(StateDevice device) { }
+
+    @Override
+    public void run() {
+        long lastFlush = System.currentTimeMillis();
+        long lastCompact = lastFlush;
+        boolean dirty = false;
+        while (running) {
+            try {
+                StateDeviceMessage msg = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    if (msg != null) {
+                        append(msg);
+                        drain();
+                        dirty = true;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (dirty && now - lastCompact >= COMPACT_INTERVAL) {
+                        compact();
+                        lastCompact = now;
+                        lastFlush = now;
+                        dirty = false;
+                    } else if (dirty && now - lastFlush >= flushInterval) {
+                        // one fsync for every change since the last flush
+                        journal.force();
+                        lastFlush = now;
+                        dirty = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                log.error("Writing state journal failed", e);
+            }
+        }
+    }
+
+    /**
+     * Helper method to write every queued change. Must be called with the
+     * lock held
+     */
+    private void drain() throws IOException {
+        StateDeviceMessage msg;
+        while (journal != null && (msg = queue.poll()) != null) {
+            append(msg);
+        }
+    }
+
+    /**
+     * Helper method to write one record to the mapped journal, compacting
+     * first if it does not fit. Must be called with the lock held
+     */
+    private void append(StateDeviceMessage msg) throws IOException {
+        latest.put(msg.getId(), msg);
+        byte[] bytes = msg.toByteArray();
+        // keep room for the zero length that ends the journal
+        if (journal.remaining() < bytes.length + 12) {
+            compact();
+            if (journal.remaining() < bytes.length + 12) {
+                log.error("State record for " + msg.getId() + " is larger than the journal");
+                return;
+            }
+        }
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        journal.putInt(bytes.length);
+        journal.putInt((int) crc.getValue());
+        journal.put(bytes);
+    }
+
+    /**
+     * Helper method to write the current state to a new snapshot and clear
+     * the journal. The snapshot replaces the old one atomically, so a crash
+     * leaves either the old snapshot and journal or the new snapshot. Must be
+     * called with the lock held
+     */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            for (StateDeviceMessage msg : latest.values()) {
+                msg.writeDelimitedTo(out);
+            }
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        // clear the used part of the journal
+        int used = journal.position();
+        for (int i = 0; i < used; i++) {
+            journal.put(i, (byte) 0);
+        }
+        journal.position(0);
+        journal.force();
+        log.debug("Compacted state journal in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,121 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.server.server.ConnectionMonitor;
+import com.alfred.server.server.ControlMessages;
+import com.alfred.server.server.Frame;
+import com.alfred.server.server.Server;
+import com.alfred.server.server.ServerConnection;
+
+/**
+ * Tests that silent and stuck clients are pinged and closed
+ */
+public class ConnectionMonitorTests {
+
+    /**
+     * Connection that keeps its frames in the queue and records close
+     */
+    private static class TestConnection extends ServerConnection {
+        volatile boolean closed = false;
+
+        TestConnection() {
+            super(new Socket());
+        }
+
+        @Override
+        protected void onFrameQueued() { }
+
+        @Override
+        public void close() {
+            closed = true;
+            getOutboundQueue().close();
+        }
+
+        void startWrite() {
+            setWritePending(true);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Server.closeConnections(0);
+    }
+
+    /**
+     * Test that a silent client that understands control messages is pinged
+     * once per heartbeat interval, and closed at the idle timeout
+     */
+    @Test
+    public void heartbeatTest() throws Exception {
+        ConnectionMonitor monitor = new ConnectionMonitor(1000, 3000, 0);
+        TestConnection connection = new TestConnection();
+        connection.enableControl();
+        TestConnection legacy = new TestConnection();
+        Server.addServerConnection(connection);
+        Server.addServerConnection(legacy);
+        long start = connection.getLastReceiveTime();
+
+        assertEquals(0, monitor.check(start + 500));
+        assertEquals(0, connection.getOutboundQueue().size());
+
+        assertEquals(0, monitor.check(start + 1000));
+        assertEquals(0, monitor.check(start + 1500));
+        assertEquals("One ping per interval", 1, connection.getOutboundQueue().size());
+        Frame ping = connection.getOutboundQueue().poll();
+        StateDeviceMessage msg = StateDeviceMessage.parseDelimitedFrom(new ByteArrayInputStream(bytes(ping)));
+        assertEquals(ControlMessages.PING, msg.getId());
+
+        assertEquals(1, monitor.check(start + 3000));
+        assertTrue(connection.closed);
+        assertFalse("Older clients are never pinged or closed for silence", legacy.closed);
+        assertEquals(0, legacy.getOutboundQueue().size());
+        assertEquals(1, Server.getConnectionCount());
+    }
+
+    /**
+     * Test that a client whose writes make no progress is closed at the
+     * write timeout
+     */
+    @Test
+    public void writeStallTest() {
+        ConnectionMonitor monitor = new ConnectionMonitor(0, 0, 2000);
+        TestConnection connection = new TestConnection();
+        Server.addServerConnection(connection);
+        long now = System.currentTimeMillis();
+
+        assertEquals(0, monitor.check(now + 5000));
+        connection.startWrite();
+        assertEquals(0, monitor.check(now + 1000));
+        assertEquals(1, monitor.check(now + 2500));
+        assertTrue(connection.closed);
+        assertEquals(0, Server.getConnectionCount());
+    }
+
+    /**
+     * Test that the checks run at half the shortest configured time
+     */
+    @Test
+    public void intervalTest() {
+        assertEquals(15000, new ConnectionMonitor(30000, 90000, 60000).getInterval());
+        assertEquals(1000, new ConnectionMonitor(0, 0, 500).getInterval());
+        assertEquals(0, new ConnectionMonitor(0, 0, 0).getInterval());
+    }
+
+    private static byte[] bytes(Frame frame) {
+        ByteBuffer buffer = frame.buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,102 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.server.utils.Debouncer;
+
+/**
+ * Tests that sensor bursts are reduced to one state update
+ */
+public class DebouncerTests {
+
+    /**
+     * Debouncer that records its updates instead of using the
+     * StateDeviceManager. Its clock only moves when the test moves it, and
+     * the latches tell the test when a held update was checked and applied
+     */
+    private static class RecordingDebouncer extends Debouncer {
+        final List<State> updates = new CopyOnWriteArrayList<>();
+        volatile State state;
+        volatile long now = 1000000;
+        volatile String updateThread;
+        volatile CountDownLatch stateRead = new CountDownLatch(0);
+        volatile CountDownLatch stateSet = new CountDownLatch(0);
+
+        RecordingDebouncer(long window, boolean leading, State initial) {
+            super("test", window, leading);
+            this.state = initial;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        protected State getState() {
+            State current = state;
+            stateRead.countDown();
+            return current;
+        }
+
+        @Override
+        protected void setState(State state) {
+            this.state = state;
+            updateThread = Thread.currentThread().getName();
+            updates.add(state);
+            stateSet.countDown();
+        }
+    }
+
+    /**
+     * Test that the first edge of a burst is applied at once and the rest
+     * are dropped
+     */
+    @Test
+    public void leadingTest() {
+        RecordingDebouncer debouncer = new RecordingDebouncer(200, true, State.INACTIVE);
+        debouncer.update(State.ACTIVE);
+        debouncer.update(State.INACTIVE);
+        debouncer.update(State.ACTIVE);
+        assertEquals(1, debouncer.updates.size());
+        assertEquals(State.ACTIVE, debouncer.state);
+
+        debouncer.now += 300;
+        debouncer.update(State.INACTIVE);
+        assertEquals(2, debouncer.updates.size());
+        assertEquals(2, debouncer.getSuppressedCount());
+    }
+
+    /**
+     * Test that only the settled state of a burst is applied, and not at all
+     * if the sensor settles where it started
+     */
+    @Test
+    public void trailingTest() throws Exception {
+        RecordingDebouncer debouncer = new RecordingDebouncer(100, false, State.CLOSED);
+        debouncer.stateSet = new CountDownLatch(1);
+        debouncer.update(State.OPEN);
+        debouncer.update(State.CLOSED);
+        debouncer.update(State.OPEN);
+        assertEquals(0, debouncer.updates.size());
+        assertTrue(debouncer.stateSet.await(5, TimeUnit.SECONDS));
+        assertEquals(1, debouncer.updates.size());
+        assertEquals(State.OPEN, debouncer.state);
+        assertEquals("The update is applied off the scheduler thread", "alfred-debounce", debouncer.updateThread);
+
+        debouncer.stateRead = new CountDownLatch(1);
+        debouncer.update(State.CLOSED);
+        debouncer.update(State.OPEN);
+        assertTrue(debouncer.stateRead.await(5, TimeUnit.SECONDS));
+        assertEquals(1, debouncer.updates.size());
+    }
+}
@@ -0,0 +1,80 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alfred.server.utils.DeviceFileWatcher;
+
+/**
+ * Unit tests for the device file watcher
+ */
+public class DeviceFileWatcherTests {
+
+    private File dir;
+    private DeviceFileWatcher watcher;
+    private final AtomicInteger changes = new AtomicInteger();
+    private volatile String taskThread;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("alfred-watch").toFile();
+        write("devices.json", "[]");
+        watcher = new DeviceFileWatcher(new File(dir, "devices.json").getPath(), 200, new Runnable() {
+            @Override
+            public void run() {
+                taskThread = Thread.currentThread().getName();
+                changes.incrementAndGet();
+            }
+        });
+        watcher.start();
+    }
+
+    @After
+    public void tearDown() {
+        watcher.stop();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test that a burst of writes to the file runs the task once, and that
+     * other files in the directory are ignored
+     */
+    @Test(timeout = 10000)
+    public void changeTest() throws Exception {
+        write("other.json", "[]");
+        Thread.sleep(600);
+        assertEquals(0, changes.get());
+
+        for (int i = 0; i < 3; i++) {
+            write("devices.json", "[" + i + "]");
+            Thread.sleep(20);
+        }
+        while (changes.get() == 0) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(600);
+        assertEquals(1, changes.get());
+        assertEquals("The task runs off the scheduler thread", "alfred-reload", taskThread);
+
+        watcher.stop();
+        write("devices.json", "[]");
+        Thread.sleep(600);
+        assertEquals("No tasks after stop", 1, changes.get());
+    }
+
+    private void write(String name, String content) throws IOException {
+        Files.write(new File(dir, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
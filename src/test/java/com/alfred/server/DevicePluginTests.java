@@ -0,0 +1,70 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alfred.server.gpio.Gpio;
+import com.alfred.server.gpio.SimulatedGpio;
+import com.alfred.server.plugins.DevicePlugin;
+import com.alfred.server.plugins.RPGarageDoorPlugin;
+import com.alfred.server.plugins.RPSwitchDevicePlugin;
+
+/**
+ * Unit tests for activating and deactivating device plugins
+ */
+public class DevicePluginTests {
+
+    private SimulatedGpio gpio;
+
+    @Before
+    public void setUp() {
+        gpio = new SimulatedGpio();
+        Gpio.setBackend(gpio);
+    }
+
+    @After
+    public void tearDown() {
+        Gpio.shutdown();
+    }
+
+    /**
+     * Test that deactivated plugins release their pins, so the device can be
+     * activated again with a new plugin
+     */
+    @Test
+    public void reactivateTest() {
+        DevicePlugin[] plugins = {
+            new RPGarageDoorPlugin(12, 16, "garage", 0),
+            new RPSwitchDevicePlugin(18, 22, "light", 0)
+        };
+        for (DevicePlugin plugin : plugins) {
+            plugin.activate();
+        }
+        assertTrue(gpio.inject(12, true));
+
+        for (DevicePlugin plugin : plugins) {
+            plugin.deactivate();
+        }
+        try {
+            gpio.inject(12, false);
+            fail("sensor pin not released");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // provisioning a pin twice fails, so this needs every pin released
+        plugins[0] = new RPGarageDoorPlugin(12, 16, "garage", 0);
+        plugins[1] = new RPSwitchDevicePlugin(18, 22, "light", 0);
+        for (DevicePlugin plugin : plugins) {
+            plugin.activate();
+        }
+        assertTrue(gpio.inject(18, true));
+        for (DevicePlugin plugin : plugins) {
+            plugin.deactivate();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alfred.server.email.Email;
+import com.alfred.server.email.EmailDispatcher;
+
+/**
+ * Tests for the email dispatcher, run against a minimal SMTP server on the
+ * loopback interface
+ */
+public class EmailDispatcherTests {
+
+    private static final List<String> RECIPIENTS = Arrays.asList("visitor@localhost");
+
+    private FakeSmtpServer smtp;
+    private EmailDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws IOException {
+        smtp = new FakeSmtpServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        smtp.close();
+    }
+
+    /**
+     * Test that a burst of emails is delivered over a single SMTP connection
+     */
+    @Test
+    public void reusesConnectionTest() throws Exception {
+        dispatcher = createDispatcher(8, 3);
+        dispatcher.start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(dispatcher.submit(new TestEmail("Visitor " + i)));
+        }
+        smtp.awaitMessages(3, 5000);
+        assertEquals("All emails are delivered", 3, smtp.messages.get());
+        assertEquals("One connection is used for every email", 1, smtp.connections.get());
+    }
+
+    /**
+     * Test that a rejected email is retried on a new connection
+     */
+    @Test
+    public void retryTest() throws Exception {
+        smtp.rejections.set(1);
+        dispatcher = createDispatcher(8, 3);
+        dispatcher.start();
+        assertTrue(dispatcher.submit(new TestEmail("Visitor")));
+        smtp.awaitMessages(1, 5000);
+        assertEquals("Email is delivered on the second attempt", 1, smtp.messages.get());
+        assertEquals("The connection is reopened after a failure", 2, smtp.connections.get());
+    }
+
+    /**
+     * Test that an email that throws while it is built does not stop the
+     * emails queued after it
+     */
+    @Test
+    public void brokenEmailTest() throws Exception {
+        dispatcher = createDispatcher(8, 3);
+        dispatcher.start();
+        assertTrue(dispatcher.submit(new BrokenEmail()));
+        assertTrue(dispatcher.submit(new TestEmail("Visitor")));
+        smtp.awaitMessages(1, 5000);
+        assertEquals("The email after the broken one is delivered", 1, smtp.messages.get());
+    }
+
+    /**
+     * Test that emails are refused once the queue is full
+     */
+    @Test
+    public void queueFullTest() {
+        // not started, so nothing leaves the queue
+        dispatcher = createDispatcher(1, 1);
+        assertTrue(dispatcher.submit(new TestEmail("First")));
+        assertFalse(dispatcher.submit(new TestEmail("Second")));
+        assertEquals(1, dispatcher.getQueueSize());
+    }
+
+    private EmailDispatcher createDispatcher(int capacity, int attempts) {
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", "127.0.0.1");
+        properties.setProperty("mail.smtp.port", String.valueOf(smtp.getPort()));
+        properties.setProperty("mail.smtp.auth", "false");
+        properties.setProperty("mail.smtp.connectiontimeout", "5000");
+        properties.setProperty("mail.smtp.timeout", "5000");
+        return new EmailDispatcher(properties, "alfred@localhost", "", RECIPIENTS, capacity, attempts, 10);
+    }
+
+    /**
+     * Plain text email used by the tests
+     */
+    private static class TestEmail extends Email {
+
+        TestEmail(String subject) {
+            setSubject(subject);
+        }
+
+        @Override
+        public MimeMultipart getContent() {
+            try {
+                MimeBodyPart text = new MimeBodyPart();
+                text.setText("Someone is at the door");
+                MimeMultipart content = new MimeMultipart();
+                content.addBodyPart(text);
+                return content;
+            } catch (MessagingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Email whose content cannot be built
+     */
+    private static class BrokenEmail extends Email {
+
+        BrokenEmail() {
+            setSubject("Broken");
+        }
+
+        @Override
+        public MimeMultipart getContent() {
+            throw new IllegalStateException("No content");
+        }
+    }
+
+    /**
+     * Just enough of an SMTP server to accept messages. It counts the
+     * connections and messages it receives, and can be told to reject a
+     * number of messages after their data is sent
+     */
+    private static class FakeSmtpServer implements Runnable {
+
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger messages = new AtomicInteger();
+        final AtomicInteger rejections = new AtomicInteger();
+        private final ServerSocket serverSocket;
+
+        FakeSmtpServer() throws IOException {
+            serverSocket = new ServerSocket(0, 5, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this, "fake-smtp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        void awaitMessages(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (messages) {
+                while (messages.get() < count && System.currentTimeMillis() < deadline) {
+                    messages.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    connections.incrementAndGet();
+                    serve(socket);
+                } catch (IOException e) {
+                    // closed by the test, or the client went away
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream out = socket.getOutputStream();
+            reply(out, "220 localhost ESMTP");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        // discard the message body
+                    }
+                    if (rejections.getAndDecrement() > 0) {
+                        reply(out, "451 Try again later");
+                    } else {
+                        synchronized (messages) {
+                            messages.incrementAndGet();
+                            messages.notifyAll();
+                        }
+                        reply(out, "250 OK");
+                    }
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    // EHLO, MAIL, RCPT, RSET, NOOP
+                    reply(out, "250 OK");
+                }
+            }
+        }
+
+        private static void reply(OutputStream out, String response) throws IOException {
+            out.write((response + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alfred.server.server.FrameDecoder;
+
+/**
+ * Unit tests for the length delimited frame decoder
+ */
+public class FrameDecoderTests {
+
+    /**
+     * Test that a frame split across reads is only returned once complete
+     */
+    @Test
+    public void partialFrameTest() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(1024);
+        List<byte[]> frames = new ArrayList<>();
+
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put(new byte[] { 3, 1, 2 });
+        buffer.flip();
+        decoder.decode(buffer, frames);
+        assertEquals("No frame until all bytes arrive", 0, frames.size());
+        assertEquals("Partial frame is left in the buffer", 0, buffer.position());
+
+        buffer.compact();
+        buffer.put(new byte[] { 3, 5 });
+        buffer.flip();
+        decoder.decode(buffer, frames);
+        assertEquals("Complete frame is decoded", 1, frames.size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, frames.get(0));
+        assertEquals("Start of the next frame is left in the buffer", 1, buffer.remaining());
+    }
+
+    /**
+     * Test that a multi byte length prefix is decoded
+     */
+    @Test
+    public void varintLengthTest() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(1024);
+        List<byte[]> frames = new ArrayList<>();
+
+        // 300 encodes as 0xAC 0x02
+        ByteBuffer buffer = ByteBuffer.allocate(302);
+        buffer.put((byte) 0xAC).put((byte) 0x02).put(new byte[300]);
+        buffer.flip();
+        decoder.decode(buffer, frames);
+        assertEquals(1, frames.size());
+        assertEquals(300, frames.get(0).length);
+    }
+
+    /**
+     * Test that oversized frames are rejected
+     */
+    @Test(expected = IOException.class)
+    public void oversizedFrameTest() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(100);
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { (byte) 0xAC, 0x02 });
+        decoder.decode(buffer, new ArrayList<byte[]>());
+    }
+}
@@ -0,0 +1,135 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alfred.server.utils.ImageStore;
+import com.alfred.server.utils.ImageStore.StoredImage;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests that visitor images can be found by time and are deleted by segment
+ */
+public class ImageStoreTests {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("alfred-images").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static ByteString image(int size, int value) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (value + i);
+        }
+        return ByteString.copyFrom(bytes);
+    }
+
+    /**
+     * Test that images are found by time range and read back after the store
+     * is reopened
+     */
+    @Test
+    public void findTest() throws Exception {
+        long now = System.currentTimeMillis();
+        ImageStore store = new ImageStore(directory, 1024, 1024 * 1024, DAY);
+        store.open();
+        for (int i = 0; i < 10; i++) {
+            store.append(now + i * 1000, image(300, i));
+        }
+        store.close();
+
+        store = new ImageStore(directory, 1024, 1024 * 1024, DAY);
+        store.open();
+        List<StoredImage> found = store.find(now + 2000, now + 4000);
+        assertEquals(3, found.size());
+        assertEquals(now + 2000, found.get(0).getTime());
+        assertEquals(image(300, 3), store.read(found.get(1)));
+        assertEquals(image(300, 9), store.read(store.get(now + 9000)));
+        assertNull(store.get(now + 500));
+
+        // a second image in the same millisecond is kept too
+        store.append(now, image(10, 42));
+        assertEquals(2, store.find(now, now + 1).size());
+        store.close();
+    }
+
+    /**
+     * Test that an image is indexed at the real end of the segment even when
+     * the segment file grew behind the store's back, e.g. from a torn write
+     */
+    @Test
+    public void appendOffsetTest() throws Exception {
+        long now = System.currentTimeMillis();
+        ImageStore store = new ImageStore(directory, 1024 * 1024, 1024 * 1024, DAY);
+        store.open();
+        store.append(now, image(100, 1));
+        File segment = directory.listFiles()[0];
+        if (!segment.getName().endsWith(".seg")) {
+            segment = directory.listFiles()[1];
+        }
+        Files.write(segment.toPath(), new byte[37], StandardOpenOption.APPEND);
+
+        store.append(now + 1, image(100, 2));
+        assertEquals(image(100, 1), store.read(store.get(now)));
+        assertEquals(image(100, 2), store.read(store.get(now + 1)));
+        assertEquals(segment.length(), store.getSize());
+        store.close();
+    }
+
+    /**
+     * Test that the oldest whole segments are deleted when the store is over
+     * its size or age limit
+     */
+    @Test
+    public void retentionTest() throws Exception {
+        long now = System.currentTimeMillis();
+        ImageStore store = new ImageStore(directory, 1000, 3000, DAY);
+        store.open();
+        // an old image in its own segment
+        store.append(now - 2 * DAY, image(1000, 0));
+        store.append(now, image(100, 1));
+        assertNull(store.get(now - 2 * DAY));
+        assertEquals(image(100, 1), store.read(store.get(now)));
+
+        for (int i = 1; i <= 20; i++) {
+            store.append(now + i, image(500, i));
+        }
+        assertTrue(store.getSize() <= 3000 + 1000);
+        assertNull(store.get(now));
+        assertEquals(image(500, 20), store.read(store.get(now + 20)));
+        store.close();
+        assertEquals(store.getSize(), FileUtils.sizeOfDirectory(directory) - indexSize());
+    }
+
+    private long indexSize() {
+        long size = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".idx")) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+}
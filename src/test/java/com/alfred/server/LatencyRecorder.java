@@ -0,0 +1,122 @@
+package com.alfred.server;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram for the load test. Buckets are powers of two split into
+ * 16 linear sub-buckets, so any recorded latency from a microsecond to a few
+ * minutes is reported within about 6%, in a fixed amount of memory no matter
+ * how many samples are recorded.
+ *
+ * Not thread safe, each client thread keeps its own recorder and the
+ * reporter merges them.
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+    // 2^38 ns is about four and a half minutes
+    private static final int MAX_EXPONENT = 38;
+
+    private final long[] counts = new long[(MAX_EXPONENT + 1) * SUB_BUCKETS];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * Method to record a latency
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[index(nanos)]++;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Method to add the samples of another recorder to this one
+     *
+     * @param other The recorder to merge
+     */
+    public void add(LatencyRecorder other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Method to clear every sample
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    /**
+     * @return The number of samples recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The largest latency recorded, in nanoseconds
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Method to get a percentile of the recorded latencies
+     *
+     * @param percentile The percentile, e.g. 99.9
+     * @return The latency in nanoseconds, at the upper bound of its bucket
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Helper method to find the bucket of a latency
+     */
+    private static int index(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return (MAX_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Helper method to get the largest latency that falls in a bucket
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,59 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the load test's latency histogram
+ */
+public class LatencyRecorderTests {
+
+    /**
+     * Test that percentiles are reported within the bucket precision
+     */
+    @Test
+    public void percentileTest() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (long micros = 1; micros <= 1000; micros++) {
+            recorder.record(micros * 1000);
+        }
+        assertEquals(1000, recorder.getCount());
+        assertEquals(1000000, recorder.getMax());
+        assertWithin(500000, recorder.getPercentile(50));
+        assertWithin(990000, recorder.getPercentile(99));
+        assertEquals(1000000, recorder.getPercentile(100));
+    }
+
+    /**
+     * Test that merged recorders report over every sample, and reset clears
+     * them
+     */
+    @Test
+    public void addTest() {
+        LatencyRecorder fast = new LatencyRecorder();
+        LatencyRecorder slow = new LatencyRecorder();
+        for (int i = 0; i < 90; i++) {
+            fast.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            slow.record(1000000);
+        }
+        LatencyRecorder total = new LatencyRecorder();
+        total.add(fast);
+        total.add(slow);
+        assertEquals(100, total.getCount());
+        assertWithin(1000, total.getPercentile(90));
+        assertWithin(1000000, total.getPercentile(91));
+
+        total.reset();
+        assertEquals(0, total.getCount());
+        assertEquals(0, total.getPercentile(99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 16);
+    }
+}
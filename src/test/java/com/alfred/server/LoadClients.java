@@ -0,0 +1,276 @@
+package com.alfred.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.server.server.ControlMessages;
+import com.alfred.server.server.Frame;
+import com.alfred.server.server.FrameDecoder;
+
+/**
+ * Simulated protobuf clients for the load test. Unlike FakeConnection, which
+ * is a thread per client, the clients share a few selector threads, so
+ * thousands of them can run in one JVM next to the server.
+ *
+ * Every message from the load driver carries the System.nanoTime it was sent
+ * at in its name, and each client records the time until the message was
+ * decoded. Clients that opt in to control messages join chunked messages
+ * before recording them, and answer heartbeats.
+ */
+public class LoadClients {
+
+    public static final String LOAD_PREFIX = "load";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    private final ClientLoop[] loops;
+    private final boolean control;
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile boolean running = true;
+    private static final Logger log = LoggerFactory.getLogger(LoadClients.class);
+
+    /**
+     * @param threads The number of selector threads serving the clients
+     * @param control True if the clients opt in to control messages
+     */
+    public LoadClients(int threads, boolean control) throws IOException {
+        this.control = control;
+        this.loops = new ClientLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ClientLoop();
+            Thread thread = new Thread(loops[i], "load-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Method to connect clients, at most the given number per second
+     *
+     * @param address The address of the server
+     * @param count The number of clients
+     * @param perSecond The connect rate
+     */
+    public void connect(InetSocketAddress address, int count, int perSecond) throws InterruptedException {
+        long interval = perSecond > 0 ? 1000000000L / perSecond : 0;
+        long next = System.nanoTime();
+        for (int i = 0; i < count && running; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.socket().setTcpNoDelay(true);
+                if (control) {
+                    Frame.encode(ControlMessages.create(ControlMessages.HELLO, "load")).writeTo(channel.socket()
+                            .getOutputStream());
+                }
+                channel.configureBlocking(false);
+                loops[i % loops.length].register(channel);
+                connected.incrementAndGet();
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                log.debug("Client " + i + " failed to connect", e);
+            }
+            next += interval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+    }
+
+    /**
+     * Method to disconnect every client and stop the selector threads
+     */
+    public void shutdown() {
+        running = false;
+        for (ClientLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * @return The latencies recorded since the last call, merged over all
+     *         client threads
+     */
+    public LatencyRecorder drainLatencies() {
+        LatencyRecorder total = new LatencyRecorder();
+        for (ClientLoop loop : loops) {
+            synchronized (loop.latencies) {
+                total.add(loop.latencies);
+                loop.latencies.reset();
+            }
+        }
+        return total;
+    }
+
+    public long getConnected() {
+        return connected.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * A selector thread and the clients registered with it
+     */
+    private class ClientLoop implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        final LatencyRecorder latencies = new LatencyRecorder();
+        final List<byte[]> frames = new ArrayList<>();
+
+        ClientLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Client());
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                log.error("Client loop failed", e);
+            }
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Client client = (Client) key.attachment();
+            try {
+                int count = channel.read(client.buffer);
+                if (count < 0) {
+                    throw new IOException("Closed by the server");
+                }
+                receivedBytes.addAndGet(count);
+                client.buffer.flip();
+                frames.clear();
+                client.decoder.decode(client.buffer, frames);
+                client.buffer.compact();
+                if (!client.buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(client.buffer.capacity() * 2);
+                    client.buffer.flip();
+                    larger.put(client.buffer);
+                    client.buffer = larger;
+                }
+                for (byte[] frame : frames) {
+                    onMessage(channel, client, StateDeviceMessage.parseFrom(frame));
+                }
+            } catch (IOException e) {
+                dropped.incrementAndGet();
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    log.debug("Closing client failed", ce);
+                }
+            }
+        }
+
+        private void onMessage(SocketChannel channel, Client client, StateDeviceMessage msg) throws IOException {
+            if (ControlMessages.PING.equals(msg.getId())) {
+                // a pong is a few bytes, the socket buffer always has room
+                channel.write(Frame.encode(ControlMessages.create(ControlMessages.PONG, msg.getName())).buffer());
+                return;
+            }
+            if (ControlMessages.CHUNK.equals(msg.getId())) {
+                msg = client.join(msg);
+                if (msg == null) {
+                    return;
+                }
+            }
+            if (!msg.getId().startsWith(LOAD_PREFIX)) {
+                return;
+            }
+            long sent = Long.parseLong(msg.getName());
+            received.incrementAndGet();
+            synchronized (latencies) {
+                latencies.record(System.nanoTime() - sent);
+            }
+        }
+    }
+
+    /**
+     * The receive state of one client
+     */
+    private static class Client {
+        final FrameDecoder decoder = new FrameDecoder(MAX_FRAME_SIZE);
+        final Map<String, ByteArrayOutputStream> transfers = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * Method to add a chunk to its transfer
+         *
+         * @return The joined message if this was the last chunk, else null
+         */
+        StateDeviceMessage join(StateDeviceMessage chunk) throws IOException {
+            String[] parts = chunk.getName().split(":");
+            ByteArrayOutputStream transfer = transfers.get(parts[0]);
+            if (transfer == null) {
+                transfer = new ByteArrayOutputStream();
+                transfers.put(parts[0], transfer);
+            }
+            chunk.getData().writeTo(transfer);
+            if (Integer.parseInt(parts[1]) < Integer.parseInt(parts[2]) - 1) {
+                return null;
+            }
+            transfers.remove(parts[0]);
+            return StateDeviceMessage.parseFrom(transfer.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.alfred.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.server.metrics.Metrics;
+import com.alfred.server.server.ConnectionEngine;
+import com.alfred.server.server.NewConnectionThread;
+import com.alfred.server.server.NioConnectionEngine;
+import com.alfred.server.server.Server;
+import com.alfred.server.utils.Config;
+import com.google.protobuf.ByteString;
+
+/**
+ * Load generator for the server. Starts a server on the loopback address in
+ * this JVM, connects thousands of simulated clients (LoadClients) and drives
+ * state changes and image events through Server.sendMessage at fixed rates.
+ * Every few seconds, and at the end, it prints the broadcast throughput, the
+ * end to end latency percentiles, dropped connections and the server's heap
+ * and thread counts.
+ *
+ * Options are key=value arguments, all optional:
+ * <ul>
+ * <li><b>clients:</b> number of clients (1000)</li>
+ * <li><b>engine:</b> "blocking" or "nio" (nio)</li>
+ * <li><b>duration:</b> seconds to drive load after connecting (30)</li>
+ * <li><b>staterate:</b> state changes per second (10)</li>
+ * <li><b>imagerate:</b> image events per second (0.2)</li>
+ * <li><b>imagesize:</b> bytes of image data per image event (48000)</li>
+ * <li><b>control:</b> true if the clients opt in to control messages, so
+ * images are chunked (false)</li>
+ * <li><b>connectrate:</b> client connects per second (500)</li>
+ * <li><b>clientthreads:</b> selector threads for the clients (2)</li>
+ * <li><b>loglevel:</b> server log level while the test runs (WARN)</li>
+ * </ul>
+ * Any "alfred.*" argument is passed to the server properties, for example
+ * alfred.network.queuesize=16.
+ *
+ * Run with: java -cp [test and runtime classpath] com.alfred.server.LoadTest clients=2000
+ */
+public class LoadTest {
+
+    private static final long REPORT_INTERVAL = 5;
+
+    private final Properties options = new Properties();
+    private final AtomicLong stateChanges = new AtomicLong();
+    private final AtomicLong imageEvents = new AtomicLong();
+    private LoadClients clients;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split > 0) {
+                test.options.setProperty(arg.substring(0, split), arg.substring(split + 1));
+            }
+        }
+        test.run();
+        System.exit(0);
+    }
+
+    private String option(String key, String defaultValue) {
+        return options.getProperty(key, defaultValue);
+    }
+
+    public void run() throws Exception {
+        int clientCount = Integer.parseInt(option("clients", "1000"));
+        String engineName = option("engine", "nio");
+        long duration = Long.parseLong(option("duration", "30"));
+        double stateRate = Double.parseDouble(option("staterate", "10"));
+        double imageRate = Double.parseDouble(option("imagerate", "0.2"));
+        int imageSize = Integer.parseInt(option("imagesize", "48000"));
+        boolean control = Boolean.parseBoolean(option("control", "false"));
+        int connectRate = Integer.parseInt(option("connectrate", "500"));
+        int clientThreads = Integer.parseInt(option("clientthreads", "2"));
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+                .setLevel(Level.toLevel(option("loglevel", "WARN"), Level.WARN));
+
+        // server on a free loopback port
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Properties properties = new Properties();
+        properties.setProperty(Config.HOST_ADDRESS, "127.0.0.1");
+        properties.setProperty(Config.HOST_PORT, String.valueOf(port));
+        for (String key : options.stringPropertyNames()) {
+            if (key.startsWith("alfred.")) {
+                properties.setProperty(key, options.getProperty(key));
+            }
+        }
+        Server.loadProperties(properties);
+        ConnectionEngine engine = "blocking".equalsIgnoreCase(engineName)
+                ? new NewConnectionThread("127.0.0.1", String.valueOf(port))
+                : new NioConnectionEngine("127.0.0.1", String.valueOf(port), 1);
+        Thread accept = new Thread(engine, "alfred-accept");
+        accept.setDaemon(true);
+        accept.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        awaitListening(address);
+
+        System.out.println("Connecting " + clientCount + " clients to the " + engineName + " engine on port " + port);
+        long start = System.nanoTime();
+        clients = new LoadClients(clientThreads, control);
+        clients.connect(address, clientCount, connectRate);
+        System.out.println("Connected " + clients.getConnected() + " clients (" + clients.getFailed()
+                + " failed) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, server has "
+                + Server.getConnectionCount());
+
+        ScheduledExecutorService driver = Executors.newScheduledThreadPool(2);
+        if (stateRate > 0) {
+            driver.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    long n = stateChanges.incrementAndGet();
+                    Server.sendMessage(message("load-light" + (n % 16), Type.LIGHT,
+                            n % 2 == 0 ? State.ON : State.OFF, null));
+                }
+            }, 0, (long) (1000000 / stateRate), TimeUnit.MICROSECONDS);
+        }
+        if (imageRate > 0) {
+            final byte[] image = new byte[imageSize];
+            new Random(42).nextBytes(image);
+            final ByteString data = ByteString.copyFrom(image);
+            driver.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    imageEvents.incrementAndGet();
+                    Server.sendMessage(message("load-doorbell", Type.DOORBELL, State.ACTIVE, data));
+                }
+            }, 0, (long) (1000000 / imageRate), TimeUnit.MICROSECONDS);
+        }
+
+        LatencyRecorder total = new LatencyRecorder();
+        long lastReceived = clients.getReceived();
+        long lastBytes = clients.getReceivedBytes();
+        for (long elapsed = 0; elapsed < duration; elapsed += REPORT_INTERVAL) {
+            long interval = Math.min(REPORT_INTERVAL, duration - elapsed);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(interval));
+            LatencyRecorder latencies = clients.drainLatencies();
+            total.add(latencies);
+            long received = clients.getReceived();
+            long bytes = clients.getReceivedBytes();
+            report((elapsed + interval) + "s", latencies, (received - lastReceived) / interval,
+                    (bytes - lastBytes) / interval);
+            lastReceived = received;
+            lastBytes = bytes;
+        }
+        driver.shutdownNow();
+        driver.awaitTermination(1, TimeUnit.SECONDS);
+
+        // let the queues drain before the final numbers
+        Thread.sleep(1000);
+        total.add(clients.drainLatencies());
+        System.out.println();
+        System.out.println("Sent " + stateChanges.get() + " state changes and " + imageEvents.get()
+                + " image events to " + clients.getConnected() + " clients");
+        report("total", total, clients.getReceived() / Math.max(1, duration),
+                clients.getReceivedBytes() / Math.max(1, duration));
+        long expected = (stateChanges.get() + imageEvents.get()) * clients.getConnected();
+        System.out.println("Delivered " + clients.getReceived() + " of " + expected + " messages, "
+                + Metrics.counter("alfred_outbound_dropped_total", "").get() + " frames dropped by full queues");
+
+        clients.shutdown();
+        engine.shutdown();
+        Server.closeConnections(1000);
+    }
+
+    /**
+     * Helper method to print one line of results
+     */
+    private void report(String label, LatencyRecorder latencies, long messagesPerSecond, long bytesPerSecond) {
+        Runtime runtime = Runtime.getRuntime();
+        long heap = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println(String.format(
+                "%-6s %8d msg/s %8d KB/s  latency ms p50 %7.2f p90 %7.2f p99 %7.2f p99.9 %7.2f max %7.2f"
+                        + "  connections %d dropped %d  heap %d MB threads %d",
+                label, messagesPerSecond, bytesPerSecond / 1024,
+                millis(latencies.getPercentile(50)), millis(latencies.getPercentile(90)),
+                millis(latencies.getPercentile(99)), millis(latencies.getPercentile(99.9)),
+                millis(latencies.getMax()), Server.getConnectionCount(), clients.getDropped(), heap, threads));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Helper method to create a load message, stamped with the time it is
+     * sent
+     */
+    private static StateDeviceMessage message(String id, Type type, State state, ByteString data) {
+        StateDeviceMessage.Builder builder = StateDeviceMessage.newBuilder()
+                .setId(id)
+                .setName(String.valueOf(System.nanoTime()))
+                .setType(type)
+                .setState(state);
+        if (data != null) {
+            builder.setData(data);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Helper method to wait until the engine accepts connections
+     */
+    private static void awaitListening(InetSocketAddress address) throws InterruptedException, IOException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start listening on " + address);
+    }
+}
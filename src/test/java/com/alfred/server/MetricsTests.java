@@ -0,0 +1,85 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import com.alfred.server.metrics.Counter;
+import com.alfred.server.metrics.Gauge;
+import com.alfred.server.metrics.Histogram;
+import com.alfred.server.metrics.Metrics;
+import com.alfred.server.metrics.MetricsEndpoint;
+
+/**
+ * Tests the metrics registry and its Prometheus text output
+ */
+public class MetricsTests {
+
+    @After
+    public void tearDown() {
+        MetricsEndpoint.stop();
+        Metrics.remove("test_events_total");
+        Metrics.remove("test_latency_seconds");
+        Metrics.remove("test_depth");
+    }
+
+    /**
+     * Test that durations land in cumulative buckets and that a metric is
+     * registered once per name
+     */
+    @Test
+    public void histogramTest() {
+        Histogram histogram = Metrics.histogram("test_latency_seconds", "Test latency");
+        assertSame(histogram, Metrics.histogram("test_latency_seconds", "Test latency"));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(200));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.SECONDS.toNanos(20));
+        assertEquals(3, histogram.getCount());
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("# TYPE test_latency_seconds histogram\n"));
+        assertTrue(text.contains("test_latency_seconds_bucket{le=\"0.0005\"} 1\n"));
+        assertTrue(text.contains("test_latency_seconds_bucket{le=\"0.005\"} 2\n"));
+        assertTrue(text.contains("test_latency_seconds_bucket{le=\"10\"} 2\n"));
+        assertTrue(text.contains("test_latency_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_latency_seconds_count 3\n"));
+    }
+
+    /**
+     * Test that counters and gauges are served by the endpoint
+     */
+    @Test
+    public void endpointTest() throws Exception {
+        Counter counter = Metrics.counter("test_events_total", "Test events");
+        counter.increment();
+        counter.add(2);
+        Metrics.gauge("test_depth", "Test depth", new Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+
+        MetricsEndpoint.start(MetricsEndpoint.DEFAULT_ADDRESS, 0);
+        URL url = new URL("http://" + MetricsEndpoint.DEFAULT_ADDRESS + ":" + MetricsEndpoint.getPort() + "/metrics");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/plain"));
+        String text;
+        try (InputStream in = connection.getInputStream()) {
+            text = IOUtils.toString(in, StandardCharsets.UTF_8.name());
+        }
+        assertTrue(text.contains("# TYPE test_events_total counter\ntest_events_total 3\n"));
+        assertTrue(text.contains("# TYPE test_depth gauge\ntest_depth 7\n"));
+    }
+}
@@ -0,0 +1,417 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.google.protobuf.ByteString;
+import com.alfred.server.server.ControlMessages;
+import com.alfred.server.server.Frame;
+import com.alfred.server.server.OutboundQueue;
+import com.alfred.server.server.OutboundQueue.ImagePolicy;
+import com.alfred.server.server.OutboundQueue.OverflowPolicy;
+
+/**
+ * Unit tests for the per-client outbound queue overflow policies
+ */
+public class OutboundQueueTests {
+
+    private static Frame frame(int value) {
+        try {
+            return Frame.encode(StateDeviceMessage.newBuilder()
+                    .setId("device" + value)
+                    .setName("Device " + value)
+                    .setType(Type.DOORBELL)
+                    .setState(State.INACTIVE)
+                    .build());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Frame update(String id, State state, boolean image) {
+        StateDeviceMessage.Builder builder = StateDeviceMessage.newBuilder()
+                .setId(id)
+                .setName(id)
+                .setType(Type.DOORBELL)
+                .setState(state);
+        if (image) {
+            builder.setData(ByteString.copyFrom(new byte[16]));
+        }
+        try {
+            return Frame.encode(builder.build());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Frame version(long version) {
+        try {
+            return Frame.encode(ControlMessages.create(ControlMessages.VERSION, String.valueOf(version)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<Frame> chunks(int size, int chunkSize) {
+        try {
+            return Frame.encodeChunks(StateDeviceMessage.newBuilder()
+                    .setId("doorbell")
+                    .setName("Doorbell")
+                    .setType(Type.DOORBELL)
+                    .setState(State.ACTIVE)
+                    .setData(ByteString.copyFrom(new byte[size]))
+                    .build(), chunkSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Test that the oldest frame is dropped when the queue is full
+     */
+    @Test
+    public void dropOldestTest() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, 0);
+        Frame second = frame(2);
+        Frame third = frame(3);
+        assertTrue(queue.offer(frame(1)));
+        assertTrue(queue.offer(second));
+        assertTrue(queue.offer(third));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getDroppedCount());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * Test that a full queue asks for the client to be disconnected
+     */
+    @Test
+    public void disconnectTest() {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DISCONNECT, 0);
+        assertTrue(queue.offer(frame(1)));
+        assertFalse(queue.offer(frame(2)));
+    }
+
+    /**
+     * Test that a blocked sender gives up after the timeout
+     */
+    @Test(timeout = 5000)
+    public void blockTimeoutTest() {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 50);
+        assertTrue(queue.offer(frame(1)));
+        long start = System.currentTimeMillis();
+        assertFalse(queue.offer(frame(2)));
+        assertTrue("Sender waited for the timeout", System.currentTimeMillis() - start >= 40);
+    }
+
+    /**
+     * Test that a thread that drains queues itself never waits for space
+     */
+    @Test(timeout = 5000)
+    public void blockForbiddenTest() throws InterruptedException {
+        final OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 60000);
+        assertTrue(queue.offer(frame(1)));
+        final boolean[] offered = { true };
+        Thread loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OutboundQueue.forbidBlocking();
+                offered[0] = queue.offer(frame(2));
+            }
+        });
+        loop.start();
+        loop.join();
+        assertFalse(offered[0]);
+        assertEquals(1, queue.size());
+    }
+
+    /**
+     * Test that a blocked sender continues once the writer makes room
+     */
+    @Test(timeout = 5000)
+    public void blockUntilDrainedTest() throws InterruptedException {
+        final OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 5000);
+        assertTrue(queue.offer(frame(1)));
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(queue.offer(frame(2)));
+        writer.join();
+    }
+
+    /**
+     * Test that closing the queue releases a waiting writer
+     */
+    @Test(timeout = 5000)
+    public void closeTest() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DROP_OLDEST, 0);
+        queue.offer(frame(1));
+        queue.close();
+        assertNull(queue.take());
+        assertFalse(queue.offer(frame(2)));
+    }
+
+    /**
+     * Test that state updates are sent between the chunks of a large message
+     */
+    @Test
+    public void priorityTest() {
+        OutboundQueue queue = new OutboundQueue(16, OverflowPolicy.DISCONNECT, 0);
+        List<Frame> image = chunks(1000, 300);
+        assertEquals(4, image.size());
+        assertTrue(queue.offer(image.get(0)));
+        assertTrue(queue.offer(image.get(1)));
+        Frame update = frame(1);
+        assertTrue(queue.offer(update));
+        assertTrue(queue.offer(image.get(2)));
+
+        assertSame("State update goes first", update, queue.poll());
+        assertSame("Chunks keep their order", image.get(0), queue.poll());
+        assertSame(image.get(1), queue.poll());
+        assertSame(image.get(2), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * Test that a full queue drops chunks before state updates
+     */
+    @Test
+    public void dropBulkFirstTest() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, 0);
+        List<Frame> image = chunks(1000, 512);
+        Frame first = frame(1);
+        Frame second = frame(2);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(image.get(0)));
+        assertTrue(queue.offer(second));
+        assertEquals(1, queue.getDroppedCount());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * Test that a full queue drops every waiting chunk of the oldest large
+     * message at once, and keeps the chunks of the next one
+     */
+    @Test
+    public void dropTransferTest() {
+        OutboundQueue queue = new OutboundQueue(5, OverflowPolicy.DROP_OLDEST, 0);
+        List<Frame> first = chunks(1000, 400);
+        List<Frame> second = chunks(1000, 600);
+        assertEquals(3, first.size());
+        assertEquals(2, second.size());
+        for (Frame chunk : first) {
+            assertTrue(queue.offer(chunk));
+        }
+        for (Frame chunk : second) {
+            assertTrue(queue.offer(chunk));
+        }
+        Frame update = frame(1);
+        assertTrue(queue.offer(update));
+        assertEquals(3, queue.getDroppedCount());
+        assertSame(update, queue.poll());
+        assertSame(second.get(0), queue.poll());
+        assertSame(second.get(1), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * Test that the version of a chunked message, and every later version,
+     * is sent after its last chunk, and is dropped with the chunks
+     */
+    @Test
+    public void versionAfterChunksTest() {
+        OutboundQueue queue = new OutboundQueue(6, OverflowPolicy.DROP_OLDEST, 0, true, ImagePolicy.KEEP);
+        List<Frame> image = chunks(1000, 400);
+        Frame imageVersion = version(1).afterChunks(image);
+        Frame update = frame(2);
+        Frame updateVersion = version(2);
+        for (Frame chunk : image) {
+            assertTrue(queue.offer(chunk));
+        }
+        assertTrue(queue.offer(imageVersion));
+        assertTrue(queue.offer(update));
+        assertTrue(queue.offer(updateVersion));
+        assertEquals(6, queue.size());
+        assertEquals(0, queue.getDroppedCount());
+
+        assertSame(update, queue.poll());
+        for (Frame chunk : image) {
+            assertSame(chunk, queue.poll());
+        }
+        assertSame("Version follows the last chunk", imageVersion, queue.poll());
+        assertSame("Later versions wait behind the chunks", updateVersion, queue.poll());
+        assertNull(queue.poll());
+
+        // the version of a transfer is dropped with its chunks
+        for (Frame chunk : image) {
+            assertTrue(queue.offer(chunk));
+        }
+        assertTrue(queue.offer(imageVersion));
+        assertTrue(queue.offer(frame(3)));
+        assertTrue(queue.offer(frame(4)));
+        assertTrue(queue.offer(frame(5)));
+        assertEquals(4, queue.getDroppedCount());
+        assertEquals(3, queue.size());
+    }
+
+    /**
+     * Test that a state update waits behind the queued chunks of an earlier
+     * update of the same device, but not behind chunks of other devices
+     */
+    @Test
+    public void stateAfterChunksTest() {
+        OutboundQueue queue = new OutboundQueue(8, OverflowPolicy.DROP_OLDEST, 0, true, ImagePolicy.KEEP);
+        List<Frame> image = chunks(1000, 400);
+        for (Frame chunk : image) {
+            assertTrue(queue.offer(chunk));
+        }
+        Frame inactive = update("doorbell", State.INACTIVE, false);
+        Frame other = update("garage", State.OPEN, false);
+        assertTrue(queue.offer(inactive));
+        assertTrue(queue.offer(other));
+
+        assertSame("Other devices are not held up", other, queue.poll());
+        for (Frame chunk : image) {
+            assertSame(chunk, queue.poll());
+        }
+        assertSame("The newer state follows the chunks", inactive, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * Test that a wait for the queue to drain ends when the last frame is
+     * taken, or when the time runs out
+     */
+    @Test
+    public void awaitEmptyTest() throws Exception {
+        final OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue("An empty queue does not wait", queue.awaitEmpty(0));
+        assertTrue(queue.offer(frame(1)));
+        assertTrue(queue.offer(frame(2)));
+        assertFalse(queue.awaitEmpty(10));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.poll();
+                queue.poll();
+            }
+        });
+        writer.start();
+        assertTrue(queue.awaitEmpty(5000));
+        writer.join();
+    }
+
+    /**
+     * Test that batches are taken in priority order and stop at the frame and
+     * byte limits
+     */
+    @Test
+    public void drainToTest() {
+        OutboundQueue queue = new OutboundQueue(8, OverflowPolicy.DROP_OLDEST, 0);
+        List<Frame> image = chunks(1000, 300);
+        for (Frame chunk : image) {
+            assertTrue(queue.offer(chunk));
+        }
+        Frame update = frame(1);
+        assertTrue(queue.offer(update));
+
+        List<Frame> batch = new ArrayList<>();
+        assertEquals(2, queue.drainTo(batch, 2, 4096));
+        assertSame("State update goes first", update, batch.get(0));
+        assertSame(image.get(0), batch.get(1));
+
+        batch.clear();
+        int size = image.get(1).size();
+        assertEquals("Stops before a frame that does not fit", 1, queue.drainTo(batch, 8, size + 1));
+        assertSame(image.get(1), batch.get(0));
+        assertEquals(0, queue.drainTo(batch, 8, 0));
+        assertEquals(image.size() - 2, queue.size());
+    }
+
+    /**
+     * Test that a conflating queue keeps only the latest waiting update of
+     * each device, in the order the latest updates were sent
+     */
+    @Test
+    public void conflateTest() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT, 0, true, ImagePolicy.KEEP);
+        Frame garage = update("garage", State.OPEN, false);
+        Frame latest = update("doorbell", State.INACTIVE, false);
+        assertTrue(queue.offer(update("doorbell", State.ACTIVE, false)));
+        assertTrue(queue.offer(garage));
+        assertTrue("Replacing an update makes room", queue.offer(latest));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getConflatedCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertSame(garage, queue.poll());
+        assertSame(latest, queue.poll());
+
+        // updates that were already sent are not replaced
+        Frame next = update("doorbell", State.ACTIVE, false);
+        assertTrue(queue.offer(next));
+        assertEquals(1, queue.getConflatedCount());
+        assertSame(next, queue.poll());
+
+        queue.setConflating(false);
+        assertTrue(queue.offer(update("garage", State.OPEN, false)));
+        assertTrue(queue.offer(update("garage", State.CLOSED, false)));
+        assertEquals(2, queue.size());
+    }
+
+    /**
+     * Test that pictures are kept, replaced by newer pictures, or replaced by
+     * any newer update depending on the image policy
+     */
+    @Test
+    public void imagePolicyTest() {
+        OutboundQueue keep = new OutboundQueue(8, OverflowPolicy.DISCONNECT, 0, true, ImagePolicy.KEEP);
+        OutboundQueue latest = new OutboundQueue(8, OverflowPolicy.DISCONNECT, 0, true, ImagePolicy.LATEST);
+        OutboundQueue drop = new OutboundQueue(8, OverflowPolicy.DISCONNECT, 0, true, ImagePolicy.DROP);
+        Frame picture = update("doorbell", State.ACTIVE, true);
+        Frame newer = update("doorbell", State.ACTIVE, true);
+        Frame state = update("doorbell", State.INACTIVE, false);
+        for (OutboundQueue queue : new OutboundQueue[] { keep, latest, drop }) {
+            assertTrue(queue.offer(picture));
+            assertTrue(queue.offer(newer));
+            assertTrue(queue.offer(state));
+        }
+
+        assertSame(picture, keep.poll());
+        assertSame(newer, keep.poll());
+        assertSame(state, keep.poll());
+
+        assertSame(newer, latest.poll());
+        assertSame("Pictures and state updates are conflated apart", state, latest.poll());
+        assertNull(latest.poll());
+
+        assertSame(state, drop.poll());
+        assertNull(drop.poll());
+        assertEquals(2, drop.getConflatedCount());
+    }
+}
@@ -0,0 +1,83 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.alfred.server.utils.Scheduler;
+
+/**
+ * Unit tests for the shared keyed scheduler
+ */
+public class SchedulerTests {
+
+    @After
+    public void tearDown() {
+        Scheduler.cancelAll();
+    }
+
+    /**
+     * Test that scheduling under the same key replaces the pending task
+     */
+    @Test
+    public void rescheduleTest() throws InterruptedException {
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        assertFalse(Scheduler.schedule("reset:door", new Runnable() {
+            @Override
+            public void run() {
+                first.incrementAndGet();
+            }
+        }, 200, TimeUnit.MILLISECONDS));
+        assertTrue("Pending task is replaced", Scheduler.schedule("reset:door", new Runnable() {
+            @Override
+            public void run() {
+                second.incrementAndGet();
+                done.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS));
+        assertEquals("One task per key", 1, Scheduler.getPendingCount());
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        assertEquals("Replaced task never runs", 0, first.get());
+        assertEquals(1, second.get());
+        assertEquals("Task is no longer pending once it ran", 0, Scheduler.getPendingCount());
+    }
+
+    /**
+     * Test that a cancelled task does not run
+     */
+    @Test
+    public void cancelTest() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        Scheduler.schedule("reset:door", new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        Scheduler.schedule("reset:garage", new Runnable() {
+            @Override
+            public void run() { }
+        }, 1, TimeUnit.MINUTES);
+        assertEquals(2, Scheduler.getPendingCount());
+
+        assertTrue(Scheduler.cancel("reset:door"));
+        assertFalse("Nothing left to cancel", Scheduler.cancel("reset:door"));
+        assertTrue(Scheduler.isPending("reset:garage"));
+        assertEquals(1, Scheduler.getPendingCount());
+
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+    }
+}
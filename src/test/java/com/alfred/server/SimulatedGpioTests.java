@@ -0,0 +1,109 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.alfred.server.gpio.InputPin;
+import com.alfred.server.gpio.OutputPin;
+import com.alfred.server.gpio.PinListener;
+import com.alfred.server.gpio.SimulatedGpio;
+import com.alfred.server.utils.PinConverter;
+
+/**
+ * Unit tests for the in memory GPIO backend
+ */
+public class SimulatedGpioTests {
+
+    /**
+     * Listener that counts rising and falling edges
+     */
+    private static class CountingListener implements PinListener {
+        final AtomicInteger rising = new AtomicInteger();
+        final AtomicInteger falling = new AtomicInteger();
+
+        @Override
+        public void onEdge(int pin, boolean high) {
+            (high ? rising : falling).incrementAndGet();
+        }
+    }
+
+    /**
+     * Test that injected levels reach the listeners only when they change
+     * the pin, and not after the pin is released
+     */
+    @Test
+    public void injectTest() {
+        SimulatedGpio gpio = new SimulatedGpio();
+        InputPin input = gpio.provisionInput(12, "Sensor");
+        CountingListener listener = new CountingListener();
+        input.addListener(listener);
+
+        assertTrue(gpio.inject(12, true));
+        assertFalse(gpio.inject(12, true));
+        assertTrue(gpio.inject(12, false));
+        assertEquals(1, listener.rising.get());
+        assertEquals(1, listener.falling.get());
+        assertEquals(2, gpio.getEdgeCount(12));
+
+        gpio.release(12);
+        gpio.provisionInput(12, "Sensor");
+        gpio.inject(12, true);
+        assertEquals(1, listener.rising.get());
+    }
+
+    /**
+     * Test that scripts play every edge, and that output pulses are recorded
+     */
+    @Test
+    public void playTest() {
+        SimulatedGpio gpio = new SimulatedGpio();
+        CountingListener listener = new CountingListener();
+        gpio.provisionInput(13, "Sensor").addListener(listener);
+        OutputPin button = gpio.provisionOutput(3, "Button");
+
+        assertEquals(10000, gpio.play(13, 10000, 0));
+        assertEquals(5000, listener.rising.get());
+        assertEquals(5000, listener.falling.get());
+
+        // three bounces, then the contact settles high
+        long micro = 1000;
+        assertEquals(3, gpio.play(13, 50 * micro, 20 * micro, 30 * micro));
+        assertTrue(gpio.isHigh(13));
+
+        button.pulse(200);
+        assertEquals(1, gpio.getPulses(3).size());
+        assertEquals(200, gpio.getPulses(3).get(0).getMillis());
+        assertFalse(button.isHigh());
+    }
+
+    /**
+     * Test that only GPIO header pins can be provisioned, once
+     */
+    @Test
+    public void provisionTest() {
+        SimulatedGpio gpio = new SimulatedGpio();
+        gpio.provisionInput(40, "Sensor");
+        try {
+            gpio.provisionOutput(40, "Relay");
+            fail("pin provisioned twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            gpio.provisionInput(6, "Ground");
+            fail("ground pin provisioned");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(8, PinConverter.ModelB.toWiringPi(3));
+        assertEquals(1, PinConverter.ModelB.toWiringPi(12));
+        assertEquals(29, PinConverter.ModelB.toWiringPi(40));
+        assertEquals(-1, PinConverter.ModelB.toWiringPi(41));
+    }
+}
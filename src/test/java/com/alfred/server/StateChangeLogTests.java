@@ -0,0 +1,71 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.server.server.StateChangeLog;
+
+/**
+ * Unit tests for the versioned state change log
+ */
+public class StateChangeLogTests {
+
+    private static StateDeviceMessage change(String id, State state) {
+        return StateDeviceMessage.newBuilder()
+                .setId(id)
+                .setName(id)
+                .setType(Type.GARAGEDOOR)
+                .setState(state)
+                .build();
+    }
+
+    /**
+     * Test that a client gets the latest change of each device since its
+     * version
+     */
+    @Test
+    public void sinceTest() {
+        StateChangeLog log = new StateChangeLog(8, 100);
+        long first = log.append(change("garage", State.OPEN));
+        log.append(change("light", State.ON));
+        long last = log.append(change("garage", State.CLOSED));
+        assertEquals(100, first);
+        assertEquals(102, last);
+        assertEquals(last, log.getVersion());
+
+        List<StateDeviceMessage> changes = log.since(first);
+        assertEquals(2, changes.size());
+        assertEquals("light", changes.get(0).getId());
+        assertEquals(State.CLOSED, changes.get(1).getState());
+
+        assertTrue("Up to date client gets nothing", log.since(last).isEmpty());
+
+        StateChangeLog.Changes resume = log.changesSince(first);
+        assertEquals(2, resume.getMessages().size());
+        assertEquals("The changes come with the version they lead to", last, resume.getVersion());
+        assertNull(log.changesSince(200));
+    }
+
+    /**
+     * Test that versions the log no longer covers need a snapshot
+     */
+    @Test
+    public void snapshotNeededTest() {
+        StateChangeLog log = new StateChangeLog(2, 100);
+        log.append(change("garage", State.OPEN));
+        log.append(change("garage", State.CLOSED));
+        log.append(change("garage", State.OPEN));
+
+        assertNull("Oldest change was dropped", log.since(99));
+        assertEquals("Only the latest change of the device", 1, log.since(100).size());
+        assertNull("Version from the future", log.since(200));
+    }
+}
@@ -0,0 +1,91 @@
+package com.alfred.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.server.utils.StateJournal;
+
+/**
+ * Tests that device states written to the journal are restored
+ */
+public class StateJournalTests {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("alfred-journal").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static StateDevice device(String id, Type type, State state) {
+        return new StateDevice(StateDeviceMessage.newBuilder()
+                .setId(id)
+                .setName(id)
+                .setType(type)
+                .setState(state)
+                .build());
+    }
+
+    /**
+     * Test that the last state of each device survives a restart, and that
+     * doorbells are not journaled
+     */
+    @Test
+    public void restoreTest() throws Exception {
+        StateJournal journal = new StateJournal(directory, 4096, 10);
+        assertTrue(journal.restore().isEmpty());
+        journal.start();
+        journal.onUpdateDevice(device("garage", Type.GARAGEDOOR, State.OPEN));
+        journal.onUpdateDevice(device("light", Type.LIGHT, State.ON));
+        journal.onUpdateDevice(device("garage", Type.GARAGEDOOR, State.CLOSED));
+        journal.onUpdateDevice(device("doorbell", Type.DOORBELL, State.ACTIVE));
+        journal.close();
+
+        Map<String, StateDeviceMessage> restored = new StateJournal(directory, 4096, 10).restore();
+        assertEquals(2, restored.size());
+        assertEquals(State.CLOSED, restored.get("garage").getState());
+        assertEquals(State.ON, restored.get("light").getState());
+        assertFalse(restored.containsKey("doorbell"));
+    }
+
+    /**
+     * Test that a journal too small for the changes is compacted into the
+     * snapshot instead of losing them
+     */
+    @Test
+    public void compactTest() throws Exception {
+        StateJournal journal = new StateJournal(directory, 1024, 10);
+        journal.restore();
+        journal.start();
+        for (int i = 0; i < 200; i++) {
+            journal.onUpdateDevice(device("light" + (i % 5), Type.LIGHT, i % 2 == 0 ? State.ON : State.OFF));
+        }
+        // give the writer time to write without a clean close
+        Thread.sleep(500);
+
+        Map<String, StateDeviceMessage> restored = new StateJournal(directory, 1024, 10).restore();
+        assertEquals(5, restored.size());
+        assertEquals(State.OFF, restored.get("light4").getState());
+        journal.close();
+    }
+}